@@ -18,6 +18,11 @@ package ab;
 
 import ab.ftpserver.Folder;
 import ab.ftpserver.NullUser;
+import ab.ftpserver.SiteFind;
+import ab.usfs.AbstractStorage;
+import ab.usfs.BufferPool;
+import ab.usfs.CachedStorage;
+import ab.usfs.ChunkLayout;
 import ab.usfs.Concept;
 import ab.usfs.DynamoDb;
 import ab.usfs.FileSystem;
@@ -34,6 +39,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.ftpserver.DataConnectionConfigurationFactory;
 import org.apache.ftpserver.FtpServer;
 import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.command.CommandFactoryFactory;
 import org.apache.ftpserver.ftplet.FtpException;
 import org.apache.ftpserver.listener.ListenerFactory;
 import org.slf4j.Logger;
@@ -44,6 +50,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
 
 import java.io.IOException;
 import java.time.Duration;
@@ -59,46 +66,102 @@ public class Application {
     return Concept.USFS.withPassword("");
   }
 
+  /**
+   * Process-wide budget for file chunks in memory, upload pipeline and read ahead included.
+   */
+  @Bean
+  public BufferPool bufferPool(@Value("${buffer-budget:0}") long budgetBytes) {
+    if (budgetBytes > 0) {
+      BufferPool.DEFAULT.setBudgetBytes(budgetBytes);
+    }
+    log.info("Buffer budget: " + (BufferPool.DEFAULT.getBudgetBytes() >> 20) + " MiB");
+    return BufferPool.DEFAULT;
+  }
+
+  /**
+   * Chunk sizes of new files from chunk-size.backend.min and chunk-size.backend.max,
+   * inline and packed file sizes from inline-size.backend and pack-size.backend, bytes,
+   * segment wait for more packed files from pack-linger.backend, millis.
+   */
+  private static Storage configure(AbstractStorage storage, Environment environment, String backend) {
+    ChunkLayout layout = storage.newChunkLayout();
+    int min = environment.getProperty("chunk-size." + backend + ".min", Integer.class, layout.getFirst());
+    int max = environment.getProperty("chunk-size." + backend + ".max", Integer.class, layout.getMax());
+    storage.setChunkSize(min, max);
+    log.info("Chunk size: " + storage.newChunkLayout());
+    Integer inlineSize = environment.getProperty("inline-size." + backend, Integer.class);
+    if (inlineSize != null) {
+      storage.setInlineSize(inlineSize);
+    }
+    Integer packSize = environment.getProperty("pack-size." + backend, Integer.class);
+    if (packSize != null) {
+      storage.setPackSize(packSize);
+    }
+    Integer packLinger = environment.getProperty("pack-linger." + backend, Integer.class);
+    if (packLinger != null) {
+      storage.setPackLinger(packLinger);
+    }
+    if (environment.getProperty("usage." + backend, Boolean.class, false)) {
+      storage.setUsage(true);
+      log.info("Folder usage: kept");
+    }
+    if (environment.getProperty("name-index." + backend, Boolean.class, false)) {
+      storage.setNameIndex(true);
+      log.info("Name index: enabled");
+    }
+    Integer shards = environment.getProperty("shards." + backend, Integer.class);
+    if (shards != null) {
+      storage.setShards(shards);
+      log.info("Shards: " + shards);
+    }
+    return storage;
+  }
+
   @ConditionalOnProperty("dynamo")
   @Bean
-  public Storage dynamoDb(@Autowired Concept concept, @Value("${dynamo}") String url) throws IOException {
+  public Storage dynamoDb(@Autowired Concept concept, @Value("${dynamo}") String url,
+      @Autowired Environment environment) throws IOException {
     log.info("Storage: DynamoDB");
     // Table name: usfs
     // Primary partition key: pk (Binary)
     // Primary sort key: sk (Binary)
-    return new DynamoDb(new DynamoDB(AmazonDynamoDBClientBuilder.defaultClient()).getTable("usfs"), concept);
+    return configure(new DynamoDb(new DynamoDB(AmazonDynamoDBClientBuilder.defaultClient()).getTable("usfs"), concept),
+        environment, "dynamo");
   }
 
   @ConditionalOnProperty("mongo")
   @Bean
-  public Storage mongoDb(@Autowired Concept concept, @Value("${mongo}") String url) throws IOException {
+  public Storage mongoDb(@Autowired Concept concept, @Value("${mongo}") String url,
+      @Autowired Environment environment) throws IOException {
     final String mongoUrl = url.startsWith("mongodb://") ? url : "mongodb://localhost:27017/usfs";
     log.info("Storage: MongoDB, url: " + mongoUrl);
     ConnectionString connectionString = new ConnectionString(mongoUrl);
     MongoClient mongoClient = MongoClients.create(connectionString);
     MongoDatabase mongoDatabase = mongoClient.getDatabase(connectionString.getDatabase());
 //    return new GridFs(mongoDatabase, concept);
-    return new MongoDb(mongoDatabase, concept);
+    return configure(new MongoDb(mongoDatabase, concept), environment, "mongo");
   }
 
   @ConditionalOnProperty("folder")
   @Bean
-  public Storage fileFolder(@Autowired Concept concept, @Value("${folder}") String folder) throws IOException {
+  public Storage fileFolder(@Autowired Concept concept, @Value("${folder}") String folder,
+      @Autowired Environment environment) throws IOException {
     log.info("Storage: file system, folder: " + folder);
-    return new FileSystem(folder, concept);
+    return configure(new FileSystem(folder, concept), environment, "folder");
   }
 
   @ConditionalOnMissingBean
   @Bean
-  public Storage memoryStorage(@Autowired Concept concept) throws IOException {
+  public Storage memoryStorage(@Autowired Concept concept, @Autowired Environment environment) throws IOException {
     log.warn("Storage: not configured, using memory");
-    return new Memory(new HashMap<>(), concept);
+    return configure(new Memory(new HashMap<>(), concept), environment, "memory");
   }
 
   @Bean
   // sudo docker run --rm --name usfs -v ~:/mnt -p 21:21 -p 1024:1024 -p 5005:5005 openjdk:8-alpine
   // java -agentlib:jdwp=transport=dt_socket,server=y,suspend=n,address=5005 -jar /mnt/usfs.jar
-  public FtpServer ftpServer(@Autowired Storage usfsMedium) throws FtpException {
+  public FtpServer ftpServer(@Autowired Storage usfsMedium, @Value("${cache-size:10000}") int cacheSize,
+      @Value("${cache-ttl:10}") long cacheTtlSeconds) throws FtpException {
     FtpServerFactory factory = new FtpServerFactory();
 
     ListenerFactory listenerFactory = new ListenerFactory();
@@ -108,7 +171,12 @@ public class Application {
     factory.getListeners().put("default", listenerFactory.createListener());
 
     factory.setUserManager(NullUser.MANAGER);
-    factory.setFileSystem(new Folder(usfsMedium));
+    Storage storage = cacheSize <= 0 ? usfsMedium
+        : new CachedStorage(usfsMedium, cacheSize, Duration.ofSeconds(cacheTtlSeconds)); // metadata of ftp list
+    factory.setFileSystem(new Folder(storage));
+    CommandFactoryFactory commandFactoryFactory = new CommandFactoryFactory();
+    commandFactoryFactory.addCommand("SITE_FIND", new SiteFind(storage));
+    factory.setCommandFactory(commandFactoryFactory.createCommandFactory());
     FtpServer ftpServer = factory.createServer();
     ftpServer.start();
     return ftpServer;
@@ -27,16 +27,22 @@ public enum Digest {
   // required to support MD5, SHA-1, SHA-256
   MD5("MD5"), SHA1("SHA-1"), SHA256("SHA-256");
   private final String algorithm;
+  // MessageDigest is not thread-safe, one per thread, digest() resets it for the next input
+  private final ThreadLocal<MessageDigest> messageDigest = ThreadLocal.withInitial(this::newMessageDigest);
 
-  public byte[] digest(byte[] input) {
+  public MessageDigest newMessageDigest() {
     try {
-      return MessageDigest.getInstance(algorithm).digest(input); // unique MessageDigest.getInstance
+      return MessageDigest.getInstance(algorithm);
     } catch (NoSuchAlgorithmException e) {
       // full stop here, required to be supported (╯°□°)╯︵ ┻━┻
       throw new Error("Every implementation of the Java platform is required to support " + algorithm, e);
     }
   }
 
+  public byte[] digest(byte[] input) {
+    return messageDigest.get().digest(input);
+  }
+
   public byte[] digest(byte[] input, int bitSize) {
     if ((bitSize & 0b00000111) != 0) {
       throw new IllegalStateException("Unsupported digest size " + bitSize);
@@ -20,6 +20,7 @@ import lombok.SneakyThrows;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
 
 public class Encryption {
 
@@ -29,6 +30,10 @@ public class Encryption {
       return b;
     }
     @Override
+    public byte[] encrypt(byte[] b, int off, int len) {
+      return (off == 0 && len == b.length) ? b : Arrays.copyOfRange(b, off, off + len);
+    }
+    @Override
     public byte[] decrypt(byte[] b) {
       return b;
     }
@@ -41,30 +46,44 @@ public class Encryption {
   public static final int KEY_SIZE = 128;
   public static final Digest DIGEST = Digest.SHA256;
 
-  private final Cipher encryptCipher;
-  private final Cipher decryptCipher;
+  // Cipher is not thread-safe, ciphers of a thread are initialized once, doFinal resets them
+  private final ThreadLocal<Cipher> encryptCipher;
+  private final ThreadLocal<Cipher> decryptCipher;
 
   private Encryption() {
     encryptCipher = null;
     decryptCipher = null;
   }
 
-  @SneakyThrows
   public Encryption(byte[] password) {
     SecretKeySpec secretKeySpec = new SecretKeySpec(DIGEST.digest(password, KEY_SIZE), ALGORITHM);
-    encryptCipher = Cipher.getInstance(TRANSFORMATION);
-    encryptCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-    decryptCipher = Cipher.getInstance(TRANSFORMATION);
-    decryptCipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
+    encryptCipher = ThreadLocal.withInitial(() -> newCipher(Cipher.ENCRYPT_MODE, secretKeySpec));
+    decryptCipher = ThreadLocal.withInitial(() -> newCipher(Cipher.DECRYPT_MODE, secretKeySpec));
+    encryptCipher.get(); // fail here if the key is not supported
+  }
+
+  @SneakyThrows
+  private static Cipher newCipher(int mode, SecretKeySpec secretKeySpec) {
+    Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+    cipher.init(mode, secretKeySpec);
+    return cipher;
   }
 
   @SneakyThrows
   public byte[] encrypt(byte[] b) {
-    return encryptCipher.doFinal(b);
+    return encryptCipher.get().doFinal(b);
+  }
+
+  /**
+   * Encrypt a part of array. Can return b itself if there is no encryption.
+   */
+  @SneakyThrows
+  public byte[] encrypt(byte[] b, int off, int len) {
+    return encryptCipher.get().doFinal(b, off, len);
   }
 
   @SneakyThrows
   public byte[] decrypt(byte[] b) {
-    return decryptCipher.doFinal(b);
+    return decryptCipher.get().doFinal(b);
   }
 }
@@ -16,6 +16,7 @@
 
 package ab.ftpserver;
 
+import ab.usfs.Attributes;
 import ab.usfs.Path;
 import ab.usfs.Storage;
 import lombok.extern.slf4j.Slf4j;
@@ -28,6 +29,7 @@ import java.io.UncheckedIOException;
 import java.time.Instant;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static ab.Application.tick;
 
@@ -36,10 +38,19 @@ public class File implements FtpFile {
 
   private final Path path;
   private final Storage storage;
+  private final Attributes attributes; // from the folder list, null to ask the storage
 
   public File(String path, Storage storage) {
     this.path = Path.getPath(path);
     this.storage = storage;
+    this.attributes = null;
+    tick();
+  }
+
+  public File(Attributes attributes, Storage storage) {
+    this.path = attributes.getPath();
+    this.storage = storage;
+    this.attributes = attributes;
     tick();
   }
 
@@ -61,6 +72,9 @@ public class File implements FtpFile {
   public boolean doesExist() {
     tick();
     log.debug("doesExist " + path);
+    if (attributes != null) {
+      return true;
+    }
     try {
       return storage.exists(path);
     } catch (Exception e) {
@@ -73,6 +87,9 @@ public class File implements FtpFile {
   public boolean isDirectory() {
     tick();
     log.debug("isDirectory " + path);
+    if (attributes != null) {
+      return attributes.isFolder();
+    }
     try {
       return storage.isFolder(path);
     } catch (Exception e) {
@@ -90,6 +107,9 @@ public class File implements FtpFile {
   public boolean isFile() {
     tick();
     log.debug("isFile " + path);
+    if (attributes != null) {
+      return !attributes.isFolder();
+    }
     try {
       return storage.isFile(path);
     } catch (Exception e) {
@@ -157,9 +177,8 @@ public class File implements FtpFile {
   public List<? extends FtpFile> listFiles() {
     tick();
     log.debug("listFiles " + path);
-    try {
-      return storage.listFiles(path).stream().map(path -> new File(path.toString(), storage))
-          .collect(Collectors.toList());
+    try (Stream<Attributes> stream = storage.streamAttributes(path)) { // org.apache.ftpserver needs the whole list
+      return stream.map(attributes -> new File(attributes, storage)).collect(Collectors.toList());
     } catch (IOException e) {
       log.debug(e.getMessage(), e);
       throw new UncheckedIOException(e);
@@ -173,6 +192,9 @@ public class File implements FtpFile {
   public long getLastModified() {
     tick();
     log.debug("getLastModified " + path);
+    if (attributes != null) {
+      return attributes.getLastModified().toEpochMilli();
+    }
     try {
       return storage.getLastModifiedInstant(path).toEpochMilli();
     } catch (IOException e) {
@@ -203,6 +225,9 @@ public class File implements FtpFile {
   public long getSize() {
     tick();
     log.debug("getSize " + path);
+    if (attributes != null) {
+      return attributes.getSize();
+    }
     try {
       return storage.size(path);
     } catch (IOException e) {
@@ -243,10 +268,9 @@ public class File implements FtpFile {
   @Override
   public OutputStream createOutputStream(long offset) throws IOException {
     tick();
-    log.debug("createOutputStream " + path);
-    if (offset > 0) throw new IllegalStateException("stream with offset is not supported");
+    log.debug("createOutputStream " + path + " " + offset);
     try {
-      return storage.newOutputStream(path);
+      return storage.newOutputStream(path, offset);
     } catch (Exception e) {
       log.debug(e.getMessage(), e);
       throw e;
@@ -256,10 +280,9 @@ public class File implements FtpFile {
   @Override
   public InputStream createInputStream(long offset) throws IOException {
     tick();
-    log.debug("createInputStream " + path);
-    if (offset > 0) throw new IllegalStateException("stream with offset is not supported");
+    log.debug("createInputStream " + path + " " + offset);
     try {
-      return storage.newInputStream(path);
+      return storage.newInputStream(path, offset);
     } catch (Exception e) {
       log.debug(e.getMessage(), e);
       throw e;
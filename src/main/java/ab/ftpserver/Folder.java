@@ -80,7 +80,7 @@ public class Folder implements FileSystemFactory, FileSystemView {
 
   @Override
   public boolean isRandomAccessible() {
-    return false; // not implemented
+    return true; // input streams support offset, see File.createInputStream
   }
 
   @Override
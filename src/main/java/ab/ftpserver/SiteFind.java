@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.ftpserver;
+
+import ab.usfs.Path;
+import ab.usfs.Storage;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ftpserver.command.AbstractCommand;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.impl.FtpIoSession;
+import org.apache.ftpserver.impl.FtpServerContext;
+
+import java.io.IOException;
+import java.util.List;
+
+import static ab.Application.tick;
+
+/**
+ * SITE FIND glob, paths under the working folder with matching names, one per line.
+ */
+@Slf4j
+public class SiteFind extends AbstractCommand {
+
+  public static final int LIMIT = 1000;
+
+  private final Storage storage;
+
+  public SiteFind(Storage storage) {
+    this.storage = storage;
+  }
+
+  @Override
+  public void execute(FtpIoSession session, FtpServerContext context, FtpRequest request)
+      throws IOException, FtpException {
+    tick();
+    session.resetState();
+    String argument = request.getArgument(); // FIND glob
+    int index = argument == null ? -1 : argument.indexOf(' ');
+    String glob = index < 0 ? "" : argument.substring(index + 1).trim();
+    if (glob.isEmpty()) {
+      session.write(new DefaultFtpReply(FtpReply.REPLY_501_SYNTAX_ERROR_IN_PARAMETERS_OR_ARGUMENTS,
+          "Usage: SITE FIND glob"));
+      return;
+    }
+    String folder = session.getFileSystemView().getWorkingDirectory().getAbsolutePath();
+    log.debug("find " + folder + " " + glob);
+    List<Path> found = storage.find(Path.getPath(folder), glob, LIMIT);
+    StringBuilder reply = new StringBuilder();
+    for (Path path : found) {
+      reply.append(path).append('\n');
+    }
+    reply.append(found.size()).append(found.size() < LIMIT ? " found" : " found, limit reached");
+    session.write(new DefaultFtpReply(FtpReply.REPLY_200_COMMAND_OKAY, reply.toString()));
+  }
+
+}
@@ -16,29 +16,48 @@
 
 package ab.usfs;
 
-import ab.Rfc7231;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.NoSuchFileException;
+import java.time.DateTimeException;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+@Slf4j
 @RequiredArgsConstructor
 public abstract class AbstractStorage implements Storage {
 
@@ -46,96 +65,317 @@ public abstract class AbstractStorage implements Storage {
   public static final String META_KEY_IS_FOLDER = "IsFolder";
   public static final String META_KEY_CONTENT_LENGTH = "Content-Length";
   public static final String META_KEY_LAST_MODIFIED = "Last-Modified";
+  public static final String META_KEY_CHUNK_SIZE = "Chunk-Size";
+  public static final String META_KEY_CHUNK_COUNT = "Chunk-Count";
+  public static final String META_KEY_CHUNK_SIZE_MAX = "Chunk-Size-Max";
+  public static final String META_KEY_CONTENT = "Content";
+  public static final String META_KEY_SEGMENT = "Segment";
+  public static final String META_KEY_SEGMENT_OFFSET = "Segment-Offset";
+  public static final String META_KEY_CHUNK_GENERATIONS = "Chunk-Generations";
 
   private final Concept concept;
+  private final Object[] metaLocks = Stream.generate(Object::new).limit(64).toArray(); // striped by key
   protected int DEFAULT_CHUNKSIZE_BYTES = 255 * 1024; // com.mongodb.client.gridfs.GridFSBucketImpl
+  // layout of new files, DEFAULT_CHUNKSIZE_BYTES is only for files saved without Chunk-Size
+  protected int DEFAULT_CHUNKSIZE_MIN_BYTES = 64 * 1024;
+  protected int DEFAULT_CHUNKSIZE_MAX_BYTES = DEFAULT_CHUNKSIZE_BYTES;
+  protected int DEFAULT_INLINE_BYTES = 4 * 1024; // smaller files are saved in metadata, 0 to save all in chunks
+  protected int DEFAULT_PACK_BYTES = 0; // smaller files are packed in shared segments, 0 to save all in chunks
+  protected int DEFAULT_SEGMENT_BYTES = 1024 * 1024; // the whole segment is loaded to read one file
+  protected int DEFAULT_PACK_LINGER_MILLIS = 0; // close waits for the segment, concurrent closes share it
+  protected int DEFAULT_PIPELINE_DEPTH = 4; // chunks in flight per output stream, 0 for synchronous writes
+  protected int DEFAULT_READ_AHEAD_BYTES = 4 * 1024 * 1024; // prefetch cap per input stream, 0 for synchronous reads
+  protected int DEFAULT_LIST_BATCH = 256; // records decoded together
+  protected int DEFAULT_IO_THREADS = 16; // shared by all streams of this storage
+  protected int DEFAULT_SHARDS = 1; // partitions of one folder, fixed for the life of the data
+  protected int DEFAULT_LIST_PARALLELISM = 4; // partitions listed ahead of the consumer
+  protected boolean DEFAULT_NAME_INDEX = false; // names of new files and folders, for find
+  protected boolean DEFAULT_USAGE = false; // kept in every folder above the change, one write per folder
+  private ExecutorService executor;
+  private SegmentStore segmentStore;
+  protected BufferPool bufferPool = BufferPool.DEFAULT;
 
   /**
    * @throws NoSuchFileException if not exists
    * @throws FileNotFoundException if not exists
    */
-  abstract public byte[] load(byte[] pk, byte[] sk) throws IOException;
+  abstract public byte[] load(StorageKey key) throws IOException;
 
   /**
    * @throws FileAlreadyExistsException if already exists
    */
-  abstract public void save(byte[] pk, byte[] sk, byte[] b) throws IOException;
+  abstract public void save(StorageKey key, byte[] b) throws IOException;
 
   /**
    * @throws NoSuchFileException if not exists
    * @throws FileNotFoundException if not exists
    */
-  abstract public void delete(byte[] pk, byte[] sk) throws IOException;
+  abstract public void delete(StorageKey key) throws IOException;
 
-  abstract public List<byte[]> list(byte[] pk) throws IOException;
+  /**
+   * Insert or overwrite in one write, readers see the old record or the new one.
+   */
+  abstract public void replace(StorageKey key, byte[] b) throws IOException;
+
+  /**
+   * Lazy, records are loaded while the stream is consumed. The stream must be closed.
+   */
+  abstract public Stream<byte[]> listStream(StorageKey partition) throws IOException;
+
+  /**
+   * Existence without the payload. FILE or FOLDER if the backend saved the folder flag, RECORD otherwise.
+   */
+  abstract public Head head(StorageKey key) throws IOException;
+
+  public enum Head {
+    MISSING, RECORD, FILE, FOLDER
+  }
+
+  /**
+   * Metadata record, the backend can keep the folder flag next to the payload for head.
+   */
+  public void save(StorageKey key, byte[] b, boolean folder) throws IOException {
+    save(key, b);
+  }
+
+  public void replace(StorageKey key, byte[] b, boolean folder) throws IOException {
+    replace(key, b);
+  }
+
+  /**
+   * Usage of the folder record. Backends with atomic counters keep it next to the payload,
+   * they also keep it when the record is replaced.
+   * @throws NoSuchFileException if not exists
+   * @throws FileNotFoundException if not exists
+   */
+  public Usage loadUsage(StorageKey key) throws IOException {
+    Meta meta = loadMeta(key);
+    return new Usage(meta.getUsageBytes(), meta.getUsageEntries());
+  }
+
+  /**
+   * Add to the usage of the folder record. Atomic only within the process if the backend has no counters.
+   * @throws NoSuchFileException if not exists
+   * @throws FileNotFoundException if not exists
+   */
+  public void addUsage(StorageKey key, long bytes, long entries) throws IOException {
+    updateMeta(key, meta -> meta.toBuilder().usageBytes(meta.getUsageBytes() + bytes)
+        .usageEntries(meta.getUsageEntries() + entries).build());
+  }
+
+  public List<byte[]> list(StorageKey partition) throws IOException {
+    try (Stream<byte[]> stream = listStream(partition)) {
+      return stream.collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Records of all partitions. Partitions are listed in background, a few ahead of the consumer.
+   * The stream must be closed.
+   */
+  public Stream<byte[]> listStream(List<StorageKey> partitions) throws IOException {
+    if (partitions.size() == 1) {
+      return listStream(partitions.get(0));
+    }
+    if (DEFAULT_LIST_PARALLELISM <= 0) {
+      return partitions.stream().flatMap(partition -> {
+        try {
+          return listStream(partition);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+    Iterator<StorageKey> next = partitions.iterator();
+    Deque<Future<List<byte[]>>> ahead = new ArrayDeque<>(); // oldest first
+    Iterator<List<byte[]>> lists = new Iterator<List<byte[]>>() {
+      @Override
+      public boolean hasNext() {
+        return next.hasNext() || !ahead.isEmpty();
+      }
+
+      @Override
+      public List<byte[]> next() {
+        while (next.hasNext() && ahead.size() < DEFAULT_LIST_PARALLELISM) {
+          StorageKey partition = next.next();
+          ahead.add(getExecutor().submit(() -> list(partition)));
+        }
+        try {
+          return await(ahead.removeFirst());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lists, Spliterator.ORDERED), false)
+        .flatMap(List::stream).onClose(() -> ahead.forEach(future -> future.cancel(true)));
+  }
 
   public byte[] getPk(Path path) {
-    return concept.digest(path.getP1());
+    byte[] pk = concept.digest(path.getP1());
+    if (DEFAULT_SHARDS <= 1 || path.getP3().isEmpty()) {
+      return pk; // root is created before the storage is configured
+    }
+    byte[] shard = Arrays.copyOf(pk, pk.length + 1); // folder partition plus the bucket of the name
+    shard[pk.length] = (byte) Math.floorMod(Arrays.hashCode(getSk(path)), DEFAULT_SHARDS);
+    return shard;
+  }
+
+  /**
+   * Partitions with the content of the folder, one unless folders are sharded.
+   */
+  public List<StorageKey> getChildPartitions(Path path) {
+    byte[] fpk = getFpk(path);
+    if (DEFAULT_SHARDS <= 1) {
+      return Collections.singletonList(StorageKey.of(fpk));
+    }
+    List<StorageKey> partitions = new ArrayList<>(DEFAULT_SHARDS);
+    for (int bucket = 0; bucket < DEFAULT_SHARDS; bucket++) {
+      byte[] shard = Arrays.copyOf(fpk, fpk.length + 1);
+      shard[fpk.length] = (byte) bucket;
+      partitions.add(StorageKey.of(shard));
+    }
+    return partitions;
+  }
+
+  /**
+   * Spread every folder over partitions, for folders with millions of entries. Only for new storage,
+   * existing entries are not found after the change. Folder usage is not kept, it is counted on request.
+   */
+  public void setShards(int shards) {
+    if (shards < 1 || shards > 256) {
+      throw new IllegalArgumentException("shards " + shards);
+    }
+    DEFAULT_SHARDS = shards;
   }
 
   public byte[] getSk(Path path) {
     return concept.digest(path.getP2());
   }
 
+  /**
+   * Key of the metadata record of the path.
+   */
+  public StorageKey getKey(Path path) {
+    return StorageKey.of(getPk(path), getSk(path));
+  }
+
   public byte[] getFpk(Path path) {
     return concept.digest(path.getP3());
   }
 
-  public byte[] loadByte(byte[] pk, byte[] sk) throws IOException {
-    return concept.decrypt(load(pk, sk));
+  public byte[] loadByte(StorageKey key) throws IOException {
+    return concept.decrypt(load(key));
   }
 
-  public Map<String, String> loadMeta(byte[] pk, byte[] sk) throws IOException {
-    return loadMeta(loadByte(pk, sk));
+  public Meta loadMeta(StorageKey key) throws IOException {
+    return Meta.parse(loadByte(key));
   }
 
-  public Map<String, String> loadMeta(byte[] b) {
-    Properties properties = new Properties();
-    try (InputStream stream = new ByteArrayInputStream(b)) {
-      properties.load(stream);
-    } catch (IOException e) {
-      throw new UncheckedIOException(e); // IOException is not expected for ByteArrayInputStream
+  public void saveByte(StorageKey key, byte[] b) throws IOException {
+    save(key, concept.encrypt(b));
+  }
+
+  public void saveMeta(StorageKey key, Meta meta) throws IOException {
+    save(key, concept.encrypt(meta.toBytes()), meta.isFolder());
+  }
+
+  public void replaceByte(StorageKey key, byte[] b) throws IOException {
+    replace(key, concept.encrypt(b));
+  }
+
+  public void replaceMeta(StorageKey key, Meta meta) throws IOException {
+    replace(key, concept.encrypt(meta.toBytes()), meta.isFolder());
+  }
+
+  /**
+   * Load, change and replace, serialized for the same record within the process.
+   */
+  public Meta updateMeta(StorageKey key, UnaryOperator<Meta> update) throws IOException {
+    synchronized (metaLocks[key.hashCode() & (metaLocks.length - 1)]) {
+      Meta meta = update.apply(loadMeta(key));
+      replaceMeta(key, meta);
+      return meta;
+    }
+  }
+
+  /**
+   * FILE, FOLDER or MISSING, metadata is loaded only if the backend does not know the type.
+   */
+  public Head headMeta(StorageKey key) throws IOException {
+    Head head = head(key);
+    if (head != Head.RECORD) {
+      return head;
     }
-    Map<String, String> map = new LinkedHashMap<>();
-    for (Map.Entry<Object, Object> entry : properties.entrySet()) {
-      map.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+    try {
+      return loadMeta(key).isFolder() ? Head.FOLDER : Head.FILE;
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      return Head.MISSING;
     }
-    return map;
   }
 
-  public void saveByte(byte[] pk, byte[] sk, byte[] b) throws IOException {
-    save(pk, sk, concept.encrypt(b));
+  public void deleteByte(StorageKey key) throws IOException {
+    delete(key);
   }
 
-  public void saveMeta(byte[] pk, byte[] sk, Map<String, String> meta) throws IOException {
-    Properties properties = new Properties();
-    for (Map.Entry<String, String> entry : meta.entrySet()) {
-      properties.setProperty(entry.getKey(), entry.getValue());
-    }
-    try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
-      properties.store(stream, null);
-      saveByte(pk, sk, stream.toByteArray());
+  public List<byte[]> listByte(StorageKey partition) throws IOException {
+    return list(partition).stream().map(concept::decrypt).collect(Collectors.toList());
+  }
+
+  /**
+   * Metadata or null if the record is not metadata, short digests share partitions with chunks.
+   */
+  private static Meta parseMetaOrNull(byte[] b) {
+    try {
+      return Meta.parse(b);
+    } catch (IllegalArgumentException | DateTimeException e) {
+      return null;
     }
   }
 
-  public void deleteByte(byte[] pk, byte[] sk) throws IOException {
-    delete(pk, sk);
+  public Stream<Meta> streamMeta(StorageKey partition) throws IOException {
+    return decodeMeta(listStream(partition));
+  }
+
+  public Stream<Meta> streamMeta(List<StorageKey> partitions) throws IOException {
+    return decodeMeta(listStream(partitions));
   }
 
-  public List<byte[]> listByte(byte[] pk) throws IOException {
-    return list(pk).stream().map(concept::decrypt).collect(Collectors.toList());
+  /**
+   * Lazy metadata, records are decoded in batches, in parallel. The stream must be closed.
+   */
+  private Stream<Meta> decodeMeta(Stream<byte[]> stream) {
+    Iterator<byte[]> iterator = stream.iterator();
+    Iterator<List<Meta>> batches = new Iterator<List<Meta>>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public List<Meta> next() {
+        List<byte[]> batch = new ArrayList<>();
+        while (batch.size() < DEFAULT_LIST_BATCH && iterator.hasNext()) {
+          batch.add(iterator.next());
+        }
+        return batch.parallelStream().map(concept::decrypt).map(AbstractStorage::parseMetaOrNull)
+            .filter(Objects::nonNull).collect(Collectors.toList());
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED), false)
+        .flatMap(List::stream).onClose(stream::close);
   }
 
-  public List<Map<String, String>> listMeta(byte[] pk) throws IOException {
-    return listByte(pk).stream().map(this::loadMeta).collect(Collectors.toList());
+  public List<Meta> listMeta(StorageKey partition) throws IOException {
+    try (Stream<Meta> stream = streamMeta(partition)) {
+      return stream.collect(Collectors.toList());
+    }
   }
 
   @Override
   public boolean exists(Path path) {
     try {
-      return loadByte(getPk(path), getSk(path)) != null;
-    } catch (NoSuchFileException | FileNotFoundException e) {
-      return false;
+      return head(getKey(path)) != Head.MISSING;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -144,10 +384,7 @@ public abstract class AbstractStorage implements Storage {
   @Override
   public boolean isFolder(Path path) {
     try {
-      String isFolder = loadMeta(getPk(path), getSk(path)).get(META_KEY_IS_FOLDER);
-      return (isFolder != null) && Boolean.parseBoolean(isFolder);
-    } catch (NoSuchFileException | FileNotFoundException e) {
-      return false;
+      return headMeta(getKey(path)) == Head.FOLDER;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -156,10 +393,7 @@ public abstract class AbstractStorage implements Storage {
   @Override
   public boolean isFile(Path path) {
     try {
-      String isFolder = loadMeta(getPk(path), getSk(path)).get(META_KEY_IS_FOLDER);
-      return (isFolder != null) && !Boolean.parseBoolean(isFolder);
-    } catch (NoSuchFileException | FileNotFoundException e) {
-      return false;
+      return headMeta(getKey(path)) == Head.FILE;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -167,76 +401,394 @@ public abstract class AbstractStorage implements Storage {
 
   @Override
   public List<Path> listFiles(Path path) throws IOException {
-    List<Path> list = new ArrayList<>();
+    try (Stream<Meta> stream = streamMeta(getChildPartitions(path))) {
+      return stream.map(Meta::getFileName)
+          .filter(fileName -> !fileName.isEmpty()) // skip empty names in list, they are technical entries
+          .map(fileName -> new Path(path.getP3() + '/' + fileName))
+          .collect(Collectors.toList());
+    }
+  }
 
-    for (Map<String, String> map : listMeta(getFpk(path))) {
-      String propertyFileName = map.get(META_KEY_FILE_NAME);
-      if (propertyFileName == null || propertyFileName.isEmpty()) {
-        continue; // skip empty names in list, they are technical entries
-      }
-      list.add(new Path(path.getP3() + '/' + propertyFileName));
+  @Override
+  public List<Attributes> listAttributes(Path path) throws IOException {
+    try (Stream<Attributes> stream = streamAttributes(path)) {
+      return stream.collect(Collectors.toList());
     }
-    return list;
+  }
+
+  @Override
+  public Stream<Attributes> streamAttributes(Path path) throws IOException {
+    return streamMeta(getChildPartitions(path)).filter(meta -> !meta.getFileName().isEmpty())
+        .map(meta -> getAttributes(new Path(path.getP3() + '/' + meta.getFileName()), meta));
   }
 
   @Override
   public Instant getLastModifiedInstant(Path path) throws IOException {
-    return Rfc7231.instant(loadMeta(getPk(path), getSk(path)).get(META_KEY_LAST_MODIFIED));
+    return loadMeta(getKey(path)).getLastModifiedInstant();
   }
 
+  /**
+   * If the file is being written, the time goes to the metadata written on close.
+   */
   @Override
   public Path setLastModifiedInstant(Path path, Instant instant) throws IOException {
-    Map<String, String> meta = loadMeta(getPk(path), getSk(path));
-    meta.put(META_KEY_LAST_MODIFIED, Rfc7231.string(instant));
-    deleteByte(getPk(path), getSk(path));
-    saveMeta(getPk(path), getSk(path), meta);
+    if (writing.computeIfPresent(path.toString(), (key, stream) -> stream.setLastModified(instant)) != null) {
+      return path;
+    }
+    updateMeta(getKey(path), meta -> meta.toBuilder().lastModified(instant.toEpochMilli()).build());
     return path;
   }
 
-  public Map<String, String> newMeta(boolean isFolder, String fileName, long contentLength, Instant lastModified) {
-    Map<String, String> map = new LinkedHashMap<>();
-    map.put(META_KEY_IS_FOLDER, Boolean.valueOf(isFolder).toString());
-    map.put(META_KEY_FILE_NAME, fileName);
-    map.put(META_KEY_CONTENT_LENGTH, Long.toString(contentLength));
-    map.put(META_KEY_LAST_MODIFIED, Rfc7231.string(lastModified));
-    return map;
+  public Meta newMeta(boolean isFolder, String fileName, long contentLength, Instant lastModified) {
+    return Meta.builder().folder(isFolder).fileName(fileName).contentLength(contentLength)
+        .lastModified(lastModified.toEpochMilli()).build();
+  }
+
+  /**
+   * Number of chunks from the manifest or -1 if the file was saved without it.
+   */
+  public long getChunkCount(Meta meta) {
+    return meta.isFolder() ? 0L : meta.getChunkCount();
+  }
+
+  public ChunkLayout getChunkLayout(Meta meta) {
+    if (meta.getChunkSize() <= 0) {
+      return ChunkLayout.fixed(DEFAULT_CHUNKSIZE_BYTES);
+    }
+    return new ChunkLayout(meta.getChunkSize(), Math.max(meta.getChunkSizeMax(), meta.getChunkSize()));
+  }
+
+  public ChunkGenerations getChunkGenerations(Meta meta) {
+    return meta.getGenerations() == null ? ChunkGenerations.INITIAL : meta.getGenerations();
+  }
+
+  /**
+   * Key of the chunk in the file partition, generations after 0 lead the digest of the chunk number.
+   * The leading byte is not 0, so the text of the key is longer than any generation 0 key.
+   */
+  public StorageKey getChunkKey(StorageKey partition, ChunkGenerations generations, long chunk) {
+    byte[] sk = concept.digest(chunk);
+    int generation = generations.of(chunk);
+    if (generation == 0) {
+      return partition.withSk(sk);
+    }
+    byte[] generationSk = new byte[sk.length + 1];
+    generationSk[0] = (byte) generation;
+    System.arraycopy(sk, 0, generationSk, 1, sk.length);
+    return partition.withSk(generationSk);
+  }
+
+  /**
+   * Content of the small file from metadata or segment, null if the file has chunks.
+   */
+  public byte[] loadContent(Meta meta) throws IOException {
+    if (meta.getSegment() == null) {
+      return meta.getContent();
+    }
+    return getSegmentStore().load(meta.getSegment(), meta.getSegmentOffset(), (int) meta.getContentLength());
+  }
+
+  public void setInlineSize(int bytes) {
+    DEFAULT_INLINE_BYTES = bytes;
+  }
+
+  /**
+   * Files up to this size are packed in segments up to the max chunk size. Packed files are readable when disabled.
+   */
+  public void setPackSize(int bytes) {
+    DEFAULT_PACK_BYTES = bytes;
+  }
+
+  /**
+   * Time the segment waits for more packed files, for bulk loads of small files written one by one.
+   * Close returns before the segment is saved, the file appears then. A failed segment is only logged
+   * and a crash loses the lingering files, the client was told they are stored. 0, the default,
+   * saves the segment on close and close fails with it, files closed meanwhile go to the next segment.
+   */
+  public void setPackLinger(int millis) {
+    DEFAULT_PACK_LINGER_MILLIS = millis;
+  }
+
+  /**
+   * Save the lingering packed files now.
+   */
+  public void flushSegments() throws IOException {
+    getSegmentStore().flush();
+  }
+
+  /**
+   * Reclaim the space of deleted and rewritten packed files.
+   * @param minLiveRatio segments with less live content are rewritten
+   * @return number of rewritten segments
+   */
+  public int compactSegments(double minLiveRatio) throws IOException {
+    return getSegmentStore().compact(minLiveRatio, getSegmentBytes());
+  }
+
+  public ChunkLayout newChunkLayout() {
+    return new ChunkLayout(DEFAULT_CHUNKSIZE_MIN_BYTES, DEFAULT_CHUNKSIZE_MAX_BYTES);
+  }
+
+  /**
+   * Chunk sizes of new files, existing files keep their layout.
+   */
+  public void setChunkSize(int minBytes, int maxBytes) {
+    new ChunkLayout(minBytes, maxBytes); // validate
+    DEFAULT_CHUNKSIZE_MIN_BYTES = minBytes;
+    DEFAULT_CHUNKSIZE_MAX_BYTES = maxBytes;
   }
 
   @Override
   public Path createFolder(Path path) throws IOException {
-    saveMeta(getPk(path), getSk(path), newMeta(true, path.getFileName(), 0L, Instant.now()));
+    saveMeta(getKey(path), newMeta(true, path.getFileName(), 0L, Instant.now()));
+    addUsage(path, 0L, 1L);
+    indexName(path);
     return path;
   }
 
+  /**
+   * Keep the usage of folders on every change, run {@link #recomputeUsage(Path)} for the existing tree.
+   * Every change writes to every folder above it, the root folder is written by all of them.
+   */
+  public void setUsage(boolean usage) {
+    DEFAULT_USAGE = usage;
+  }
+
+  /**
+   * Not with sharded folders, the folder record would take a write for every child in every partition.
+   */
+  protected boolean isUsageKept() {
+    return DEFAULT_USAGE && DEFAULT_SHARDS <= 1;
+  }
+
+  /**
+   * Change goes to every folder above the path, up to the root. Best effort, the change is already committed,
+   * a failed folder is corrected by {@link #recomputeUsage(Path)}.
+   */
+  protected void addUsage(Path path, long bytes, long entries) {
+    if (!isUsageKept() || bytes == 0 && entries == 0) {
+      return;
+    }
+    for (Path folder = path; !folder.getP3().isEmpty(); ) {
+      folder = new Path(folder.getParent().isEmpty() ? "/" : folder.getParent());
+      try {
+        addUsage(getKey(folder), bytes, entries);
+      } catch (NoSuchFileException | FileNotFoundException e) {
+        // deleted meanwhile, the folders above have the change from that delete
+      } catch (IOException | RuntimeException e) {
+        log.warn("usage of " + folder + " is not updated, " + e);
+      }
+    }
+  }
+
+  /**
+   * Path or null if the record is not an index record, short digests share partitions.
+   */
+  private static Path parsePathOrNull(String s) {
+    try {
+      return new Path(s);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Index records are at the digest of the token, one for each path with the token. The path is encrypted.
+   * Short digests collide: a folder or another token can share the partition, and two paths can share a record,
+   * the last one indexed wins. Readers skip the records that are not theirs.
+   */
+  private StorageKey getIndexPartition(String token) {
+    return StorageKey.of(concept.digest("\0index\0" + token)); // \0 is not valid in path
+  }
+
+  private StorageKey getIndexKey(String token, Path path) {
+    return getIndexPartition(token).withSk(concept.digest(path.toString())); // digest sized, short names
+  }
+
+  /**
+   * Names of new files and folders are indexed, run {@link #indexNames(Path)} for the existing ones.
+   */
+  public void setNameIndex(boolean nameIndex) {
+    DEFAULT_NAME_INDEX = nameIndex;
+  }
+
+  protected void indexName(Path path) throws IOException {
+    if (!DEFAULT_NAME_INDEX || path.getP3().isEmpty()) {
+      return;
+    }
+    byte[] b = path.toString().getBytes(StandardCharsets.UTF_8);
+    for (String token : NameIndex.tokens(path.getFileName())) {
+      replaceByte(getIndexKey(token, path), b);
+    }
+  }
+
+  protected void unindexName(Path path) throws IOException {
+    if (!DEFAULT_NAME_INDEX) {
+      return;
+    }
+    for (String token : NameIndex.tokens(path.getFileName())) {
+      try {
+        deleteByte(getIndexKey(token, path));
+      } catch (NoSuchFileException | FileNotFoundException e) {
+        // saved before the index
+      }
+    }
+  }
+
+  /**
+   * Index the names of the tree, for trees saved before the index was enabled.
+   */
+  public void indexNames(Path folder) throws IOException {
+    for (Attributes attributes : listAttributes(folder)) {
+      indexName(attributes.getPath());
+      if (attributes.isFolder()) {
+        indexNames(attributes.getPath());
+      }
+    }
+  }
+
+  /**
+   * One index query if the glob has a whole word, the tree is walked otherwise.
+   */
+  @Override
+  public List<Path> find(Path folder, String glob, int limit) throws IOException {
+    String token = NameIndex.token(glob);
+    if (!DEFAULT_NAME_INDEX || token == null) {
+      return Storage.super.find(folder, glob, limit);
+    }
+    Pattern pattern = NameIndex.pattern(glob);
+    String prefix = folder.getP3() + '/';
+    try (Stream<byte[]> stream = listStream(getIndexPartition(token))) {
+      return stream.map(b -> new String(concept.decrypt(b), StandardCharsets.UTF_8))
+          .filter(s -> s.startsWith(prefix) && s.length() > prefix.length()) // also other tokens with the digest
+          .map(AbstractStorage::parsePathOrNull)
+          .filter(path -> path != null && pattern.matcher(path.getFileName()).matches() && exists(path))
+          .limit(limit)
+          .collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public Usage getUsage(Path path) throws IOException {
+    if (!isUsageKept()) {
+      return Storage.super.getUsage(path);
+    }
+    try {
+      return loadUsage(getKey(path));
+    } catch (FileNotFoundException e) {
+      throw new NoSuchFileException(path.toString()); // one exception for all backends
+    }
+  }
+
+  /**
+   * Count the usage of the tree again and correct the folders, for trees saved before usage was kept.
+   */
+  public Usage recomputeUsage(Path path) throws IOException {
+    if (!isUsageKept()) {
+      return Storage.super.getUsage(path); // nothing kept to correct
+    }
+    long bytes = 0;
+    long entries = 0;
+    for (Attributes attributes : listAttributes(path)) {
+      entries++;
+      if (attributes.isFolder()) {
+        Usage usage = recomputeUsage(attributes.getPath());
+        bytes += usage.getBytes();
+        entries += usage.getEntries();
+      } else {
+        bytes += attributes.getSize();
+      }
+    }
+    Usage usage = getUsage(path);
+    addUsage(getKey(path), bytes - usage.getBytes(), entries - usage.getEntries());
+    return new Usage(bytes, entries);
+  }
+
   @Override
   public long size(Path path) throws IOException {
-    Map<String, String> meta = loadMeta(getPk(path), getSk(path));
-    if (Boolean.parseBoolean(meta.get(META_KEY_IS_FOLDER))) { // not null and true
-      return 0L;
+    Meta meta = loadMeta(getKey(path));
+    return meta.isFolder() ? 0L : meta.getContentLength();
+  }
+
+  @Override
+  public Attributes getAttributes(Path path) throws IOException {
+    try {
+      return getAttributes(path, loadMeta(getKey(path)));
+    } catch (FileNotFoundException e) {
+      throw new NoSuchFileException(path.toString()); // one exception for all backends
     }
-    return Long.parseLong(meta.get(META_KEY_CONTENT_LENGTH)); // not folder and this key is expected
+  }
+
+  public Attributes getAttributes(Path path, Meta meta) {
+    return new Attributes(path, meta.isFolder(), meta.isFolder() ? 0L : meta.getContentLength(),
+        meta.getLastModifiedInstant());
   }
 
   @Override
   public void delete(Path path) throws IOException {
-    deleteByte(getPk(path), getSk(path));
-    for (int chunkCount = 0; chunkCount < Integer.MAX_VALUE; chunkCount++) { // delete file chunks, fast
-      byte[] chunkCountBit = concept.digest(chunkCount);
+    StorageKey key = getKey(path);
+    Meta meta = loadMeta(key);
+    Usage usage = !meta.isFolder() ? new Usage(meta.getContentLength(), 0L)
+        : isUsageKept() ? loadUsage(key) : null;
+    long chunks = getChunkCount(meta);
+    ChunkGenerations generations = getChunkGenerations(meta);
+    deleteByte(key);
+    if (usage != null) {
+      addUsage(path, -usage.getBytes(), -usage.getEntries() - 1);
+    }
+    unindexName(path);
+    StorageKey chunkPartition = StorageKey.of(getFpk(path));
+    for (long chunkCount = 0; chunks < 0 || chunkCount < chunks; chunkCount++) { // delete file chunks, fast
       try {
-        deleteByte(getFpk(path), chunkCountBit);
+        deleteByte(getChunkKey(chunkPartition, generations, chunkCount));
       } catch (NoSuchFileException | FileNotFoundException e) {
-        break;
+        if (chunks < 0) {
+          break; // no manifest, probe until the first missing chunk
+        }
       }
     }
     // for (listByte(getFk(path))) // delete file chunks, fail-safe
   }
 
-  public byte[] concat(byte[] a, byte[] b) {
-    // https://stackoverflow.com/questions/5513152/easy-way-to-concatenate-two-byte-arrays
-    byte[] c = new byte[a.length + b.length];
-    System.arraycopy(a, 0, c, 0, a.length);
-    System.arraycopy(b, 0, c, a.length, b.length);
-    return c;
+  /**
+   * Lazy, so backend constructors can change the pool size before the first stream is opened.
+   */
+  protected synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      AtomicInteger threadCount = new AtomicInteger();
+      executor = Executors.newFixedThreadPool(DEFAULT_IO_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "usfs-io-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return executor;
+  }
+
+  private int getSegmentBytes() {
+    return Math.min(DEFAULT_SEGMENT_BYTES, DEFAULT_CHUNKSIZE_MAX_BYTES); // backend item limit
+  }
+
+  protected synchronized SegmentStore getSegmentStore() {
+    if (segmentStore == null) {
+      segmentStore = new SegmentStore(this, concept);
+    }
+    return segmentStore;
+  }
+
+  /**
+   * Wait for the background task and rethrow its failure as IOException.
+   */
+  public static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
   }
 
   @Override
@@ -244,24 +796,62 @@ public abstract class AbstractStorage implements Storage {
     return new GridInputStream(path);
   }
 
+  @Override
+  public InputStream newInputStream(Path path, long offset) throws IOException {
+    return new GridInputStream(path, offset);
+  }
+
   @Override
   public OutputStream newOutputStream(Path path) {
-    return new GridOutputStream(path);
+    return register(new GridOutputStream(path));
   }
 
+  @Override
+  public OutputStream newOutputStream(Path path, long offset) throws IOException {
+    return register(new GridOutputStream(path, offset));
+  }
+
+  private GridOutputStream register(GridOutputStream stream) {
+    writing.put(stream.path.toString(), stream);
+    return stream;
+  }
+
+  private final Map<String, GridOutputStream> writing = new ConcurrentHashMap<>(); // open streams by path
+
   private static final Logger collisionLogger = org.slf4j.LoggerFactory.getLogger("ab.usfs.Collision");
   private static Map<String, String> collision = new HashMap<>();
 
+  /**
+   * Single writer, not thread-safe. Chunk buffers are taken from the buffer pool and returned there
+   * when the chunk is encrypted. Budget reserved for the buffer is freed when the chunk is saved.
+   */
   public class GridOutputStream extends OutputStream {
-    private final byte[] pk;
+    private final StorageKey partition; // of the chunks
     private final Path path;
     private long fileSize;
     private long chunkCount;
-    private byte[] buf = new byte[DEFAULT_CHUNKSIZE_BYTES];
+    private ChunkLayout layout = newChunkLayout();
+    private int chunkSize = layout.getFirst(); // of the current chunk
+    private byte[] buf; // from the pool, null until the first write in chunk
     private int pos = 0; // java.io.ByteArrayInputStream naming
+    private final Deque<Future<Integer>> pipeline = new ArrayDeque<>(); // chunks saving in background, oldest first
+    private long savedChunks; // acknowledged by the backend, the manifest counts only these
+    private long savedBytes;
+    private IOException failure; // first failed chunk, the file is not committed after it
+    private boolean replaceMeta; // existing file is resumed or overwritten
+    private boolean replacedLoaded;
+    private long replacedSize;
+    private long replacedChunks; // chunks of the replaced file
+    private ChunkGenerations replacedGenerations = ChunkGenerations.INITIAL;
+    private long rewrittenFrom; // first chunk in the new generation, old chunks from it are deleted after commit
+    private ChunkGenerations generations = ChunkGenerations.INITIAL;
+    private volatile Instant lastModified; // pending, now if not set
+    private boolean closed;
+    private final List<Runnable> finishListeners = new ArrayList<>();
+    private boolean finished; // guarded by finishListeners
 
     public GridOutputStream(Path path) {
-      this.pk = getFpk(path);
+      this.partition = StorageKey.of(getFpk(path));
       this.path = path;
       if (collisionLogger.isDebugEnabled()) {
         String key = concept.digestStr(path.getP3());
@@ -273,83 +863,692 @@ public abstract class AbstractStorage implements Storage {
       }
     }
 
+    /**
+     * Resume or append, the file is truncated to offset and written from there. From 0 the file is new
+     * or overwritten, the old file is looked up before the first chunk or when the metadata exists.
+     * The chunks before the chunk with offset are kept, the rest is written in a new generation of chunks.
+     * The old file stays readable until close commits the new metadata, its replaced chunks are deleted then.
+     */
+    public GridOutputStream(Path path, long offset) throws IOException {
+      this(path);
+      if (offset <= 0) {
+        return;
+      }
+      replaced(loadMeta(getKey(path)), offset);
+    }
+
+    private void loadReplaced() throws IOException {
+      try {
+        replaced(loadMeta(getKey(path)), 0);
+      } catch (NoSuchFileException | FileNotFoundException e) {
+        replacedLoaded = true; // new file
+      }
+    }
+
+    private void replaced(Meta meta, long offset) throws IOException {
+      replacedLoaded = true;
+      if (meta.isFolder()) {
+        throw new FileSystemException(path.toString(), null, "Is a folder");
+      }
+      long contentLength = meta.getContentLength();
+      if (offset > contentLength) {
+        throw new FileSystemException(path.toString(), null, "Offset " + offset + " is after the end of file");
+      }
+      ChunkLayout replacedLayout = getChunkLayout(meta);
+      replacedGenerations = getChunkGenerations(meta);
+      replacedChunks = getChunkCount(meta);
+      if (replacedChunks < 0) {
+        replacedChunks = replacedLayout.count(contentLength);
+      }
+      replaceMeta = true;
+      replacedSize = contentLength;
+      if (offset > 0) {
+        layout = replacedLayout; // keep the layout of existing chunks
+        chunkCount = layout.chunk(offset);
+        savedChunks = chunkCount;
+        savedBytes = layout.offset(chunkCount);
+        chunkSize = layout.size(chunkCount);
+        pos = (int) (offset - layout.offset(chunkCount));
+        fileSize = offset;
+        byte[] content = loadContent(meta); // smaller than the first chunk
+        if (pos > 0) {
+          buf = allocateBuffer();
+          byte[] chunk = content == null
+              ? loadByte(getChunkKey(partition, replacedGenerations, chunkCount)) : content;
+          System.arraycopy(chunk, 0, buf, 0, pos);
+        }
+      }
+      rewrittenFrom = chunkCount;
+      generations = replacedGenerations.rewrite(chunkCount);
+    }
+
+    /**
+     * Last modified time saved on close, with the rest of metadata.
+     */
+    public GridOutputStream setLastModified(Instant instant) {
+      lastModified = instant;
+      return this;
+    }
+
+    /**
+     * Expected file size, the first chunk is big enough for it. Only before the first write.
+     */
+    public void setSizeHint(long bytes) {
+      if (fileSize > 0 || chunkCount > 0) {
+        throw new IllegalStateException("size hint after write");
+      }
+      layout = newChunkLayout().withSizeHint(bytes);
+      chunkSize = layout.getFirst();
+    }
+
+    private byte[] allocateBuffer() throws IOException {
+      reserve(chunkSize);
+      return bufferPool.allocate(chunkSize);
+    }
+
+    /**
+     * Drain own pipeline before waiting for other streams.
+     */
+    private void reserve(int bytes) throws IOException {
+      while (!bufferPool.tryReserve(bytes)) {
+        if (pipeline.isEmpty()) {
+          bufferPool.reserve(bytes);
+          return;
+        }
+        awaitChunk();
+      }
+    }
+
+    /**
+     * Wait for the oldest chunk in flight, it is counted when the backend acknowledged it.
+     */
+    private void awaitChunk() throws IOException {
+      try {
+        savedBytes += await(pipeline.removeFirst());
+        savedChunks++;
+      } catch (IOException e) {
+        fail(e);
+        throw e;
+      }
+    }
+
+    /**
+     * Keep the first failure, every later write and close fails with it.
+     */
+    private void fail(Exception e) {
+      if (failure == null) {
+        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        writing.remove(path.toString(), this); // aborted transfers are not always closed
+        finished();
+      }
+    }
+
+    /**
+     * Runs when the metadata is written or the write failed, after close returns for lingering packed files.
+     */
+    public void whenFinished(Runnable listener) {
+      synchronized (finishListeners) {
+        if (!finished) {
+          finishListeners.add(listener);
+          return;
+        }
+      }
+      listener.run();
+    }
+
+    private void finished() {
+      List<Runnable> listeners;
+      synchronized (finishListeners) {
+        if (finished) {
+          return;
+        }
+        finished = true;
+        listeners = new ArrayList<>(finishListeners);
+      }
+      listeners.forEach(Runnable::run);
+    }
+
+    private void ensureOpen() throws IOException {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (failure != null) {
+        throw new IOException("Chunk failed, the file is not saved", failure);
+      }
+    }
+
     @Override
-    public synchronized void write(int b) throws IOException {
-      // I really want to throw exception here
-      // Legacy write not supported, something like that
-      byte[] b1 = new byte[1];
-      b1[0] = (byte)b;
-      this.write(b1);
+    public void write(int b) throws IOException {
+      ensureOpen();
+      if (buf == null) {
+        buf = allocateBuffer();
+      }
+      buf[pos++] = (byte) b;
+      fileSize++;
+      if (pos >= chunkSize) {
+        saveChunk(buf, 0, chunkSize, true);
+      }
     }
 
     @Override
-    public synchronized void write(byte[] b, int off, int len) throws IOException {
+    public void write(byte[] b, int off, int len) throws IOException {
+      ensureOpen();
       while (len > 0) {
-        int bytesToCopy = Math.min(DEFAULT_CHUNKSIZE_BYTES - pos, len);
+        if (pos == 0 && len >= chunkSize) {
+          int bytesToSave = chunkSize; // next chunk can be bigger
+          saveChunk(b, off, bytesToSave, false); // whole chunk straight from the caller array
+          off += bytesToSave;
+          len -= bytesToSave;
+          fileSize += bytesToSave;
+          continue;
+        }
+        if (buf == null) {
+          buf = allocateBuffer();
+        }
+        int bytesToCopy = Math.min(chunkSize - pos, len);
         System.arraycopy(b, off, buf, pos, bytesToCopy);
         pos += bytesToCopy;
         off += bytesToCopy;
         len -= bytesToCopy;
         fileSize += bytesToCopy;
-        if (pos >= DEFAULT_CHUNKSIZE_BYTES) {
-          saveByte(pk, concept.digest(chunkCount), buf);
-          buf = new byte[DEFAULT_CHUNKSIZE_BYTES]; // thread-safe
-          pos = 0;
-          chunkCount++;
+        if (pos >= chunkSize) {
+          saveChunk(buf, 0, chunkSize, true);
         }
       }
     }
 
     @Override
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
       super.close();
-      if (buf == null) {
+      if (closed) {
         return;
       }
-      if (pos > 0) {
-        saveByte(pk, concept.digest(chunkCount), Arrays.copyOf(buf, pos));
+      closed = true; // even if the remaining chunks fail
+      Instant committed;
+      try {
+        committed = commit();
+      } catch (IOException | RuntimeException e) {
+        writing.remove(path.toString(), this);
+        finished();
+        throw e;
+      }
+      if (committed != null) {
+        committed(committed);
+      }
+    }
+
+    private void committed(Instant committed) throws IOException {
+      writing.remove(path.toString(), this); // later times go to the saved metadata
+      try {
+        Instant instant = lastModified;
+        if (instant != null && !instant.equals(committed)) {
+          setLastModifiedInstant(path, instant); // set while the metadata was written
+        }
+      } finally {
+        finished();
+      }
+    }
+
+    /**
+     * Save the rest of the file and write the metadata, packed files write it when the segment is saved.
+     * @return last modified time in the metadata, null if the segment writes it
+     */
+    private Instant commit() throws IOException {
+      if (failure != null) {
+        discard();
+        deleteUncommitted();
+        throw new IOException("Chunk failed, the file is not saved", failure);
+      }
+      byte[] content = null; // small file, saved in metadata or in segment
+      if (chunkCount == 0 && pos > 0 && pos <= Math.max(DEFAULT_INLINE_BYTES, DEFAULT_PACK_BYTES)) {
+        content = Arrays.copyOf(buf, pos);
         pos = 0;
       }
-      saveMeta(getPk(path), getSk(path), newMeta(false, path.getFileName(), fileSize, Instant.now()));
-      buf = null;
+      try {
+        if (pos > 0) {
+          saveChunk(buf, 0, pos, true);
+        }
+        flushPipeline();
+      } catch (IOException | RuntimeException e) {
+        discard();
+        deleteUncommitted();
+        throw e;
+      }
+      discard(); // unused buffer of the next chunk
+      if (content == null || content.length <= DEFAULT_INLINE_BYTES) {
+        return writeMeta(null, content);
+      }
+      byte[] packed = content;
+      getSegmentStore().append(getKey(path), packed, getSegmentBytes(), DEFAULT_PACK_LINGER_MILLIS,
+          (entry, e) -> {
+            Instant committed;
+            try {
+              if (e != null) {
+                throw e;
+              }
+              committed = writeMeta(entry, packed);
+            } catch (IOException | RuntimeException metaException) {
+              writing.remove(path.toString(), this);
+              finished();
+              throw metaException;
+            }
+            committed(committed);
+          });
+      return null;
+    }
+
+    /**
+     * Metadata is the commit record, it is written only when every chunk or the segment is acknowledged.
+     */
+    private Instant writeMeta(SegmentStore.Entry entry, byte[] content) throws IOException {
+      Instant committed = lastModified == null ? Instant.now() : lastModified;
+      Meta.MetaBuilder meta = newMeta(false, path.getFileName(), content == null ? savedBytes : content.length,
+          committed).toBuilder()
+          .chunkSize(layout.getFirst()) // manifest, readers do not probe for the end
+          .chunkSizeMax(layout.getMax())
+          .chunkCount(savedChunks)
+          .generations(generations.isInitial() ? null : generations);
+      if (entry != null) {
+        meta.segment(entry.getSegment()).segmentOffset(entry.getOffset());
+      } else if (content != null) {
+        meta.content(content);
+      }
+      if (replaceMeta) {
+        replaceMeta(getKey(path), meta.build());
+      } else {
+        try {
+          saveMeta(getKey(path), meta.build());
+        } catch (FileAlreadyExistsException e) {
+          if (replacedLoaded) {
+            throw e;
+          }
+          loadReplaced(); // small file over an existing one, no chunk looked it up
+          if (!replaceMeta) {
+            throw e;
+          }
+          replaceMeta(getKey(path), meta.build());
+        }
+      }
+      for (long n = rewrittenFrom; n < replacedChunks; n++) {
+        try {
+          deleteByte(getChunkKey(partition, replacedGenerations, n)); // replaced by the committed file
+        } catch (NoSuchFileException | FileNotFoundException e) {
+          // never written
+        }
+      }
+      addUsage(path, fileSize - replacedSize, replaceMeta ? 0L : 1L);
+      if (!replaceMeta) {
+        indexName(path);
+      }
+      return committed;
+    }
+
+    /**
+     * Encrypt and save the next chunk. The buffer is reusable when this method returns.
+     * Pool buffers are encrypted in background, with the save.
+     * @param pooled b is the stream buffer, it goes back to the pool
+     */
+    private void saveChunk(byte[] b, int off, int len, boolean pooled) throws IOException {
+      if (!replacedLoaded) {
+        try {
+          loadReplaced(); // chunks of an overwritten file stay until commit
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+          throw e;
+        }
+      }
+      StorageKey key = getChunkKey(partition, generations, chunkCount);
+      int reserved = chunkSize; // buffer reservation stays with the chunk until it is saved
+      if (pooled) {
+        buf = null;
+        pos = 0;
+      } else {
+        try {
+          reserve(reserved);
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+          throw e;
+        }
+      }
+      chunkCount++;
+      chunkSize = layout.size(chunkCount);
+      byte[] chunk = b; // encrypted now if the caller owns the array
+      try {
+        while (pipeline.size() >= Math.max(DEFAULT_PIPELINE_DEPTH, 1)) {
+          awaitChunk(); // backpressure, the failed chunk fails the write
+        }
+        if (!pooled) {
+          chunk = concept.encrypt(b, off, len);
+          if (chunk == b) {
+            chunk = Arrays.copyOfRange(b, off, off + len); // no encryption, caller owns the array
+          }
+          off = 0;
+        }
+      } catch (IOException | RuntimeException e) {
+        bufferPool.free(reserved);
+        if (pooled) {
+          bufferPool.recycle(b);
+        }
+        fail(e);
+        throw e;
+      }
+      byte[] data = chunk;
+      int dataOff = off;
+      int dataLen = pooled ? len : chunk.length;
+      if (DEFAULT_PIPELINE_DEPTH <= 0) {
+        try {
+          encryptAndSave(key, data, dataOff, dataLen, pooled, reserved);
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+          throw e;
+        }
+        savedChunks++;
+        savedBytes += len;
+        return;
+      }
+      pipeline.addLast(getExecutor().submit(() -> {
+        encryptAndSave(key, data, dataOff, dataLen, pooled, reserved);
+        return len;
+      }));
+    }
+
+    private void encryptAndSave(StorageKey key, byte[] b, int off, int len, boolean encrypt, int reserved)
+        throws IOException {
+      try {
+        byte[] encrypted = encrypt ? concept.encrypt(b, off, len) : b;
+        if (encrypted != b) {
+          bufferPool.recycle(b);
+        } // no encryption, pool buffer goes to the backend
+        try {
+          save(key, encrypted);
+        } catch (FileAlreadyExistsException e) {
+          replace(key, encrypted); // left over by a failed write, no metadata points at it
+        }
+      } finally {
+        bufferPool.free(reserved);
+      }
+    }
+
+    /**
+     * Wait for all chunks in flight and throw the first failure.
+     */
+    private void flushPipeline() throws IOException {
+      IOException exception = null;
+      while (!pipeline.isEmpty()) {
+        try {
+          awaitChunk();
+        } catch (IOException e) {
+          if (exception == null) {
+            exception = e;
+          } else {
+            exception.addSuppressed(e);
+          }
+        }
+      }
+      if (exception != null) {
+        throw exception;
+      }
+    }
+
+    /**
+     * Chunks of the failed write, best effort, the next write of the generation replaces the rest.
+     */
+    private void deleteUncommitted() {
+      for (long n = rewrittenFrom; n < savedChunks; n++) {
+        try {
+          deleteByte(getChunkKey(partition, generations, n));
+        } catch (IOException | RuntimeException e) {
+          log.debug("chunk " + n + " of " + path + " is not deleted, " + e);
+        }
+      }
+    }
+
+    /**
+     * Release the buffer and wait for the chunks in flight, they free their own reservations.
+     */
+    private void discard() {
+      if (buf != null) {
+        bufferPool.recycle(buf);
+        bufferPool.free(chunkSize);
+        buf = null;
+      }
+      while (!pipeline.isEmpty()) {
+        try {
+          awaitChunk();
+        } catch (IOException e) {
+          // failure is kept
+        }
+      }
     }
   }
 
+  /**
+   * Single reader, not thread-safe. Budget is reserved for the current chunk and for each chunk in read ahead,
+   * read ahead does not grow when the budget is exhausted.
+   */
   public class GridInputStream extends InputStream {
-    private final byte[] pk;
+    private final StorageKey partition; // of the chunks
+    private final Path path;
+    private ChunkLayout layout = ChunkLayout.fixed(DEFAULT_CHUNKSIZE_BYTES);
+    private long chunkTotal = -1; // from manifest, -1 to probe for the end of file
+    private ChunkGenerations generations = ChunkGenerations.INITIAL;
+    private boolean manifestLoaded;
+    private byte[] content; // small file from metadata
     private long chunkCount;
     private byte[] buf;
     private int pos;
+    private int bufReserved; // bytes
+    private final Deque<Future<byte[]>> readAhead = new ArrayDeque<>(); // chunks loading in background, next first
+    private int readAheadChunks = 1; // adaptive, grows when the reader waits for the backend
+    private long readAheadCount; // next chunk to schedule
+    private long readAheadBytes; // reserved by the chunks in readAhead, capped by DEFAULT_READ_AHEAD_BYTES
+    private boolean endOfFile;
+    private int seekPos; // pos in the next chunk after seek
 
     public GridInputStream(Path path) {
-      this.pk = getFpk(path);
+      this.partition = StorageKey.of(getFpk(path));
+      this.path = path;
+    }
+
+    public GridInputStream(Path path, long offset) throws IOException {
+      this(path);
+      seek(offset);
+    }
+
+    /**
+     * Metadata is loaded with the first chunk, it has the chunk layout.
+     */
+    private void loadManifest() throws IOException {
+      if (manifestLoaded) {
+        return;
+      }
+      Meta meta;
+      try {
+        meta = loadMeta(getKey(path));
+      } catch (NoSuchFileException | FileNotFoundException e) {
+        chunkTotal = 0;
+        manifestLoaded = true;
+        return;
+      }
+      layout = getChunkLayout(meta);
+      chunkTotal = getChunkCount(meta);
+      generations = getChunkGenerations(meta);
+      content = loadContent(meta);
+      manifestLoaded = true;
+    }
+
+    public long position() {
+      return buf == null ? layout.offset(chunkCount) + seekPos : layout.offset(chunkCount - 1) + pos;
+    }
+
+    /**
+     * Chunk addresses are known, so only the chunk with the new position is loaded.
+     * Position after the end of file is allowed, read will return -1.
+     */
+    public void seek(long position) throws IOException {
+      if (position < 0) {
+        throw new IllegalArgumentException("negative position " + position);
+      }
+      loadManifest();
+      long chunk = layout.chunk(position);
+      int chunkPos = (int) (position - layout.offset(chunk));
+      if (buf != null && chunk == chunkCount - 1) {
+        pos = chunkPos; // same chunk
+        return;
+      }
+      if (chunk >= chunkCount && chunk < readAheadCount && !readAhead.isEmpty()) {
+        for (; chunkCount < chunk; chunkCount++) {
+          readAhead.removeFirst().cancel(false); // forward, keep the rest of read ahead
+          readAheadBytes -= layout.size(chunkCount);
+          bufferPool.free(layout.size(chunkCount));
+        }
+      } else {
+        cancelReadAhead();
+        chunkCount = chunk;
+      }
+      freeBuffer();
+      buf = null;
+      seekPos = chunkPos;
+      endOfFile = false;
     }
 
     @Override
-    public synchronized int read() throws IOException {
-      // Legacy read not supported
-      byte[] b1 = new byte[1];
-      int n = this.read(b1);
-      if (n == 1)
-        return b1[0] & 0xff;
-      return -1;
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0;
+      }
+      seek(position() + n); // java.io.FileInputStream can skip beyond the end of file too
+      return n;
     }
 
     @Override
-    public synchronized int read(byte[] b, int off, int len) throws IOException {
-      if (buf == null || pos >= buf.length) {
-        try {
-          buf = loadByte(pk, concept.digest(chunkCount));
-        } catch (NoSuchFileException | FileNotFoundException e) {
-          return -1;
-        }
-        chunkCount++;
-        pos = 0;
+    public int read() throws IOException {
+      if ((buf == null || pos >= buf.length) && !nextChunk()) {
+        return -1;
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if ((buf == null || pos >= buf.length) && !nextChunk()) {
+        return -1;
       }
       int bytesToCopy = Math.min(buf.length - pos, len);
       System.arraycopy(buf, pos, b, off, bytesToCopy);
       pos += bytesToCopy;
       return bytesToCopy;
     }
+
+    /**
+     * @return false if end of file
+     */
+    private boolean nextChunk() throws IOException {
+      if (endOfFile) {
+        return false;
+      }
+      loadManifest();
+      freeBuffer();
+      if (content != null) {
+        if (chunkCount > 0) {
+          endOfFile = true;
+          return false;
+        }
+        buf = content; // not encrypted, metadata record is
+      } else {
+        byte[] chunk = loadChunk();
+        if (chunk == null) {
+          endOfFile = true;
+          cancelReadAhead();
+          return false;
+        }
+        buf = chunk;
+      }
+      chunkCount++;
+      pos = seekPos;
+      seekPos = 0;
+      if (pos >= buf.length) {
+        endOfFile = true; // seek after the end of last chunk
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Decrypted chunk number chunkCount or null if there is no such chunk.
+     */
+    private byte[] loadChunk() throws IOException {
+      if (chunkTotal >= 0 && chunkCount >= chunkTotal) {
+        return null; // end of file from manifest, no probe call
+      }
+      int chunkSize = layout.size(chunkCount);
+      int maxChunks = DEFAULT_READ_AHEAD_BYTES / chunkSize;
+      if (maxChunks > 0 && readAhead.isEmpty()) {
+        readAheadCount = chunkCount;
+        scheduleReadAhead();
+      }
+      try {
+        if (readAhead.isEmpty()) { // synchronous or out of budget
+          bufferPool.reserve(chunkSize);
+          bufReserved = chunkSize;
+          return loadByte(getChunkKey(partition, generations, chunkCount));
+        }
+        Future<byte[]> future = readAhead.removeFirst();
+        readAheadBytes -= chunkSize;
+        bufReserved = chunkSize; // reservation of the read ahead chunk goes to the buffer
+        if (!future.isDone()) {
+          readAheadChunks = Math.min(readAheadChunks * 2, maxChunks); // backend is slower than the reader
+        } else if (readAhead.stream().allMatch(Future::isDone)) {
+          readAheadChunks = Math.max(readAheadChunks - 1, 1); // reader is slower, release memory
+        }
+        byte[] chunk = await(future);
+        scheduleReadAhead();
+        return chunk;
+      } catch (NoSuchFileException | FileNotFoundException e) {
+        freeBuffer();
+        if (chunkTotal >= 0) {
+          throw e; // the manifest has the chunk, the file is damaged
+        }
+        return null; // saved without manifest, the first missing chunk is the end
+      } catch (IOException | RuntimeException e) {
+        freeBuffer();
+        throw e;
+      }
+    }
+
+    private void scheduleReadAhead() {
+      while (readAhead.size() < readAheadChunks && (chunkTotal < 0 || readAheadCount < chunkTotal)
+          && readAheadBytes + layout.size(readAheadCount) <= DEFAULT_READ_AHEAD_BYTES // chunks grow
+          && bufferPool.tryReserve(layout.size(readAheadCount))) {
+        readAheadBytes += layout.size(readAheadCount);
+        StorageKey key = getChunkKey(partition, generations, readAheadCount++);
+        readAhead.addLast(getExecutor().submit(() -> loadByte(key))); // decrypted in background too
+      }
+    }
+
+    private void cancelReadAhead() {
+      for (Future<byte[]> future : readAhead) {
+        future.cancel(false);
+      }
+      bufferPool.free(readAheadBytes);
+      readAheadBytes = 0;
+      readAhead.clear();
+    }
+
+    private void freeBuffer() {
+      if (bufReserved > 0) {
+        bufferPool.free(bufReserved);
+        bufReserved = 0;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      endOfFile = true;
+      freeBuffer();
+      buf = null;
+      cancelReadAhead();
+    }
   }
 }
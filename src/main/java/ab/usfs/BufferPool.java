@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chunk buffers shared by all streams, and the byte budget for chunks in memory.
+ * Budget is accounting only: streams reserve bytes for the chunks they hold, in buffers, in the upload pipeline
+ * and in read ahead, and free them when the chunk is gone. Arrays are recycled by size.
+ */
+@Slf4j
+public class BufferPool {
+
+  public static final BufferPool DEFAULT = new BufferPool(Runtime.getRuntime().maxMemory() / 2, 64 * 1024 * 1024);
+
+  private long budgetBytes;
+  private final long maxRetainedBytes;
+  private final Map<Integer, Deque<byte[]>> buffers = new HashMap<>();
+  private long retainedBytes;
+  private long usedBytes;
+
+  public BufferPool(long budgetBytes, long maxRetainedBytes) {
+    this.budgetBytes = budgetBytes;
+    this.maxRetainedBytes = maxRetainedBytes;
+  }
+
+  /**
+   * Wait until the budget allows. Single reservation larger than budget is allowed when nothing else is reserved.
+   */
+  public synchronized void reserve(long bytes) throws InterruptedIOException {
+    if (!tryReserve(bytes)) {
+      log.debug("budget exhausted, waiting for " + bytes + " bytes, " + this);
+      do {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(e.getMessage());
+        }
+      } while (!tryReserve(bytes));
+    }
+  }
+
+  public synchronized boolean tryReserve(long bytes) {
+    if (usedBytes > 0 && usedBytes + bytes > budgetBytes) {
+      return false;
+    }
+    usedBytes += bytes;
+    return true;
+  }
+
+  public synchronized void free(long bytes) {
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  /**
+   * Recycled or new array, content is not cleared. Budget is not reserved.
+   */
+  public byte[] allocate(int size) {
+    synchronized (this) {
+      Deque<byte[]> deque = buffers.get(size);
+      if (deque != null && !deque.isEmpty()) {
+        retainedBytes -= size;
+        return deque.removeFirst();
+      }
+    }
+    return new byte[size];
+  }
+
+  /**
+   * The caller must not use the buffer after recycle. Budget is not freed.
+   */
+  public synchronized void recycle(byte[] buffer) {
+    if (retainedBytes + buffer.length > Math.min(maxRetainedBytes, budgetBytes - usedBytes)) {
+      return; // garbage
+    }
+    buffers.computeIfAbsent(buffer.length, k -> new ArrayDeque<>()).addFirst(buffer);
+    retainedBytes += buffer.length;
+  }
+
+  public synchronized void setBudgetBytes(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    notifyAll();
+  }
+
+  public synchronized long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "used " + usedBytes + " of " + budgetBytes + " bytes, retained " + retainedBytes;
+  }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ab.usfs;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Storage decorator with the recently used attributes in memory, missing files included.
+ * Writes on this node invalidate their paths, writes on other nodes are visible after ttl.
+ * Listed folders keep a filter of names, missing names in them are not loaded.
+ */
+@Slf4j
+public class CachedStorage implements Storage {
+
+  private final Storage storage;
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final Map<String, Entry> cache;
+  private final Map<String, NameFilter> filters; // by folder
+  private long invalidations; // loads started before invalidation are not cached
+  private long hits;
+  private long misses;
+  private long filtered;
+
+  private static class Entry {
+    private final Attributes attributes; // null if missing
+    private final long expires;
+
+    private Entry(Attributes attributes, long expires) {
+      this.attributes = attributes;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Bloom filter, about 1% false positives for the listed names. Names are added, never removed.
+   */
+  private static class NameFilter {
+    private static final int HASHES = 7;
+    private final BitSet bits;
+    private final int size;
+    private final long expires;
+
+    private NameFilter(int names, long expires) {
+      this.size = Math.max(names + 16, 64) * 10; // room for new files
+      this.bits = new BitSet(size);
+      this.expires = expires;
+    }
+
+    private int index(String name, int i) {
+      int h1 = name.hashCode();
+      int h2 = Integer.rotateLeft(h1, 16) * 0x9E3779B9 | 1;
+      return Math.floorMod(h1 + i * h2, size);
+    }
+
+    private void add(String name) {
+      for (int i = 0; i < HASHES; i++) {
+        bits.set(index(name, i));
+      }
+    }
+
+    private boolean mightContain(String name) {
+      for (int i = 0; i < HASHES; i++) {
+        if (!bits.get(index(name, i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  public CachedStorage(Storage storage, int maxEntries, Duration ttl) {
+    this.storage = storage;
+    this.maxEntries = maxEntries;
+    this.ttlNanos = ttl.toNanos();
+    this.cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > CachedStorage.this.maxEntries;
+      }
+    };
+    this.filters = new LinkedHashMap<String, NameFilter>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, NameFilter> eldest) {
+        return size() > CachedStorage.this.maxEntries;
+      }
+    };
+  }
+
+  private static String folder(Path path) {
+    return path.getParent().isEmpty() ? "/" : path.getParent();
+  }
+
+  /**
+   * @return null if the path does not exist
+   */
+  private Attributes attributes(Path path) throws IOException {
+    String key = path.toString();
+    long invalidationCount;
+    synchronized (this) {
+      Entry entry = cache.get(key);
+      if (entry != null && entry.expires - System.nanoTime() > 0) {
+        hits++;
+        return entry.attributes;
+      }
+      NameFilter filter = filters.get(folder(path));
+      if (filter != null && filter.expires - System.nanoTime() > 0 && !path.toString().equals("/")
+          && !filter.mightContain(path.getFileName())) {
+        filtered++;
+        return null; // folder is listed recently and there is no such name
+      }
+      misses++;
+      invalidationCount = invalidations;
+    }
+    Attributes attributes;
+    try {
+      attributes = storage.getAttributes(path);
+    } catch (NoSuchFileException e) {
+      attributes = null;
+    }
+    synchronized (this) {
+      if (invalidationCount == invalidations) {
+        cache.put(key, new Entry(attributes, System.nanoTime() + ttlNanos));
+      }
+    }
+    return attributes;
+  }
+
+  private Attributes attributesUnchecked(Path path) {
+    try {
+      return attributes(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Path is changed on this node. The name is added to the folder filter, deleted names stay there.
+   */
+  public synchronized void invalidate(Path path) {
+    cache.remove(path.toString());
+    NameFilter filter = filters.get(folder(path));
+    if (filter != null) {
+      filter.add(path.getFileName());
+    }
+    invalidations++;
+  }
+
+  public synchronized void invalidateAll() {
+    cache.clear();
+    filters.clear();
+    invalidations++;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Missing paths answered by folder filters.
+   */
+  public synchronized long getFiltered() {
+    return filtered;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "cache " + cache.size() + " of " + maxEntries + " entries, hits " + hits + ", misses " + misses
+        + ", filtered " + filtered;
+  }
+
+  @Override
+  public Attributes getAttributes(Path path) throws IOException {
+    Attributes attributes = attributes(path);
+    if (attributes == null) {
+      throw new NoSuchFileException(path.toString());
+    }
+    return attributes;
+  }
+
+  @Override
+  public boolean exists(Path path) {
+    return attributesUnchecked(path) != null;
+  }
+
+  @Override
+  public boolean isFolder(Path path) {
+    Attributes attributes = attributesUnchecked(path);
+    return attributes != null && attributes.isFolder();
+  }
+
+  @Override
+  public boolean isFile(Path path) {
+    Attributes attributes = attributesUnchecked(path);
+    return attributes != null && !attributes.isFolder();
+  }
+
+  @Override
+  public List<Path> listFiles(Path path) throws IOException {
+    return listAttributes(path).stream().map(Attributes::getPath).collect(Collectors.toList());
+  }
+
+  @Override
+  public List<Attributes> listAttributes(Path path) throws IOException {
+    try (Stream<Attributes> stream = streamAttributes(path)) {
+      return stream.collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Attributes of the listed files are cached too, the name filter is saved when the stream is complete.
+   */
+  @Override
+  public Stream<Attributes> streamAttributes(Path path) throws IOException {
+    long invalidationCount;
+    synchronized (this) {
+      invalidationCount = invalidations;
+    }
+    Stream<Attributes> stream = storage.streamAttributes(path);
+    Iterator<Attributes> iterator = stream.iterator();
+    long expires = System.nanoTime() + ttlNanos;
+    List<String> names = new ArrayList<>();
+    Iterator<Attributes> caching = new Iterator<Attributes>() {
+      private boolean complete;
+
+      @Override
+      public boolean hasNext() {
+        boolean hasNext = iterator.hasNext();
+        if (!hasNext && !complete) {
+          complete = true;
+          NameFilter filter = new NameFilter(names.size(), expires);
+          names.forEach(filter::add);
+          synchronized (CachedStorage.this) {
+            if (invalidationCount == invalidations) {
+              filters.put(path.toString(), filter);
+            }
+          }
+          log.debug(CachedStorage.this.toString());
+        }
+        return hasNext;
+      }
+
+      @Override
+      public Attributes next() {
+        Attributes attributes = iterator.next();
+        names.add(attributes.getPath().getFileName());
+        synchronized (CachedStorage.this) {
+          if (invalidationCount == invalidations) {
+            cache.put(attributes.getPath().toString(), new Entry(attributes, expires));
+          }
+        }
+        return attributes;
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(caching, Spliterator.ORDERED), false)
+        .onClose(stream::close);
+  }
+
+  @Override
+  public Instant getLastModifiedInstant(Path path) throws IOException {
+    return getAttributes(path).getLastModified();
+  }
+
+  @Override
+  public Path setLastModifiedInstant(Path path, Instant instant) throws IOException {
+    try {
+      return storage.setLastModifiedInstant(path, instant);
+    } finally {
+      invalidate(path);
+    }
+  }
+
+  @Override
+  public Path createFolder(Path path) throws IOException {
+    invalidate(path); // the name can be listed before this method returns
+    try {
+      return storage.createFolder(path);
+    } finally {
+      invalidate(path);
+    }
+  }
+
+  @Override
+  public long size(Path path) throws IOException {
+    return getAttributes(path).getSize();
+  }
+
+  @Override
+  public List<Path> find(Path folder, String glob, int limit) throws IOException {
+    return storage.find(folder, glob, limit);
+  }
+
+  @Override
+  public Usage getUsage(Path path) throws IOException {
+    return storage.getUsage(path); // one load already
+  }
+
+  @Override
+  public void delete(Path path) throws IOException {
+    try {
+      storage.delete(path);
+    } finally {
+      invalidate(path);
+    }
+  }
+
+  @Override
+  public InputStream newInputStream(Path path) throws IOException {
+    return storage.newInputStream(path);
+  }
+
+  @Override
+  public InputStream newInputStream(Path path, long offset) throws IOException {
+    return storage.newInputStream(path, offset);
+  }
+
+  @Override
+  public OutputStream newOutputStream(Path path) throws IOException {
+    invalidate(path);
+    return new InvalidatingOutputStream(storage.newOutputStream(path), path);
+  }
+
+  @Override
+  public OutputStream newOutputStream(Path path, long offset) throws IOException {
+    invalidate(path);
+    return new InvalidatingOutputStream(storage.newOutputStream(path, offset), path);
+  }
+
+  /**
+   * Metadata is written on close, or later by the segment of a lingering packed file.
+   */
+  private class InvalidatingOutputStream extends FilterOutputStream {
+    private final Path path;
+    private final boolean listened; // the storage tells when the write is finished
+    private boolean closed;
+
+    private InvalidatingOutputStream(OutputStream out, Path path) {
+      super(out);
+      this.path = path;
+      listened = out instanceof AbstractStorage.GridOutputStream;
+      if (listened) {
+        ((AbstractStorage.GridOutputStream) out).whenFinished(() -> invalidate(path)); // after the metadata
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len); // not byte by byte
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        out.close();
+      } finally {
+        if (!listened) {
+          invalidate(path);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import lombok.EqualsAndHashCode;
+
+import java.util.Arrays;
+
+/**
+ * Generations of the chunks of one file, in runs of chunks from the first chunk of the run. Resume and overwrite
+ * write the new chunks in a generation the old file does not use, the old chunks stay readable until the metadata
+ * is committed. Generation 0 is the key of files saved before generations.
+ */
+@EqualsAndHashCode
+public class ChunkGenerations {
+
+  public static final ChunkGenerations INITIAL = new ChunkGenerations(new long[]{0, 0});
+  public static final int MAX = 255; // one byte in the chunk key
+
+  private final long[] runs; // first chunk and generation, pairs sorted by chunk
+
+  public ChunkGenerations(long[] runs) {
+    if (runs.length < 2 || runs.length % 2 != 0 || runs[0] != 0) {
+      throw new IllegalArgumentException("chunk generations " + Arrays.toString(runs));
+    }
+    for (int i = 0; i < runs.length; i += 2) {
+      if (runs[i + 1] < 0 || runs[i + 1] > MAX || i > 0 && runs[i] <= runs[i - 2]) {
+        throw new IllegalArgumentException("chunk generations " + Arrays.toString(runs));
+      }
+    }
+    this.runs = runs.clone();
+  }
+
+  public static ChunkGenerations parse(String s) {
+    String[] parts = s.split("[,:]");
+    long[] runs = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      runs[i] = Long.parseLong(parts[i]);
+    }
+    return new ChunkGenerations(runs);
+  }
+
+  public boolean isInitial() {
+    return equals(INITIAL);
+  }
+
+  public int of(long chunk) {
+    int i = runs.length - 2;
+    while (runs[i] > chunk) {
+      i -= 2;
+    }
+    return (int) runs[i + 1];
+  }
+
+  /**
+   * Chunks from the first one go to the lowest generation of none of the current chunks.
+   * @throws IllegalStateException if every generation is used, after hundreds of resumes
+   */
+  public ChunkGenerations rewrite(long first) {
+    boolean[] used = new boolean[MAX + 1];
+    int kept = 0;
+    for (int i = 0; i < runs.length; i += 2) {
+      used[(int) runs[i + 1]] = true;
+      if (runs[i] < first) {
+        kept = i + 2;
+      }
+    }
+    int generation = 0;
+    while (generation <= MAX && used[generation]) {
+      generation++;
+    }
+    if (generation > MAX) {
+      throw new IllegalStateException("no free chunk generation");
+    }
+    long[] result = Arrays.copyOf(runs, kept + 2);
+    result[kept] = first;
+    result[kept + 1] = generation;
+    return new ChunkGenerations(result);
+  }
+
+  public long[] toArray() {
+    return runs.clone();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < runs.length; i += 2) {
+      s.append(i == 0 ? "" : ",").append(runs[i]).append(':').append(runs[i + 1]);
+    }
+    return s.toString();
+  }
+
+}
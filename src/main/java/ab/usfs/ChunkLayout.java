@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Chunk sizes of one file. The first chunk size is doubled with every chunk until the max size,
+ * so small files take small buffers and big files take few calls. Chunk offsets are computed, seek needs no index.
+ */
+@Getter
+@EqualsAndHashCode
+public class ChunkLayout {
+
+  private final int first;
+  private final int max;
+
+  public ChunkLayout(int first, int max) {
+    if (first <= 0 || max < first) {
+      throw new IllegalArgumentException("chunk size " + first + ".." + max);
+    }
+    this.first = first;
+    this.max = max;
+  }
+
+  public static ChunkLayout fixed(int size) {
+    return new ChunkLayout(size, size);
+  }
+
+  /**
+   * The same growth from the first chunk that fits the expected file size.
+   */
+  public ChunkLayout withSizeHint(long bytes) {
+    long size = first;
+    while (size < bytes && size < max) {
+      size <<= 1;
+    }
+    return new ChunkLayout((int) Math.min(size, max), max);
+  }
+
+  /**
+   * Number of chunks smaller than max.
+   */
+  private int growingChunks() {
+    int n = 0;
+    for (long size = first; size < max; size <<= 1) {
+      n++;
+    }
+    return n;
+  }
+
+  public int size(long chunk) {
+    return chunk < growingChunks() ? first << chunk : max;
+  }
+
+  public long offset(long chunk) {
+    int growing = growingChunks();
+    if (chunk <= growing) {
+      return ((1L << chunk) - 1) * first;
+    }
+    return ((1L << growing) - 1) * first + (chunk - growing) * max;
+  }
+
+  /**
+   * Chunk with the position.
+   */
+  public long chunk(long position) {
+    int growing = growingChunks();
+    long growingBytes = ((1L << growing) - 1) * first;
+    if (position < growingBytes) {
+      return 63 - Long.numberOfLeadingZeros(position / first + 1);
+    }
+    return growing + (position - growingBytes) / max;
+  }
+
+  public long count(long contentLength) {
+    return contentLength <= 0 ? 0 : chunk(contentLength - 1) + 1;
+  }
+
+  @Override
+  public String toString() {
+    return first == max ? Integer.toString(first) : first + ".." + max;
+  }
+
+}
@@ -25,6 +25,11 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 @RequiredArgsConstructor
 @AllArgsConstructor
@@ -37,10 +42,15 @@ public class Concept {
   public static final Concept SHA256 = new Concept(256, 4, Digest.SHA256);
 
   public static final Charset CHARSET = StandardCharsets.UTF_8;
+  private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+  public static final int PREFIX_MIN = 64; // one block of the hash function, shorter prefixes save nothing
   private final int digestSize;
   private final int radixSize;
   private final Digest digest;
   private Encryption encryption = Encryption.NULL;
+  // same parent paths are digested by every call, per concept as the password is part of the result
+  private final Memo<String, byte[]> digests = new Memo<>(1 << 14);
+  private final Memo<String, MessageDigest> prefixes = new Memo<>(1 << 10);
 
   public Concept withPassword(String s) {
     return new Concept(digestSize, radixSize, digest, new Encryption(s.getBytes(CHARSET)));
@@ -54,13 +64,72 @@ public class Concept {
    * Provide encrypted digest of file names.
    */
   public byte[] digest(String s) {
-    byte[] digest = encrypt(this.digest.digest(s.getBytes(CHARSET)));
-    byte[] result = new byte[digestSize >> 3];
-    System.arraycopy(digest, 0, result, 0, Math.min(digest.length, result.length));
-    return result;
+    return digests.get(s, k -> {
+      byte[] digest = encrypt(hash(k));
+      byte[] result = new byte[digestSize >> 3];
+      System.arraycopy(digest, 0, result, 0, Math.min(digest.length, result.length));
+      return result;
+    }).clone();
+  }
+
+  /**
+   * Deep paths continue from the hash state of the parent folder, it is shared by all the siblings.
+   */
+  private byte[] hash(String s) {
+    int i = s.lastIndexOf('/') + 1;
+    if (i < PREFIX_MIN) { // chars, not more than the UTF-8 bytes, before any copy
+      return digest.digest(s.getBytes(CHARSET));
+    }
+    MessageDigest state = prefixes.get(s.substring(0, i), k -> {
+      MessageDigest messageDigest = digest.newMessageDigest();
+      messageDigest.update(k.getBytes(CHARSET));
+      return messageDigest;
+    });
+    try {
+      MessageDigest messageDigest = (MessageDigest) state.clone(); // the cached state is never updated
+      return messageDigest.digest(s.substring(i).getBytes(CHARSET));
+    } catch (CloneNotSupportedException e) {
+      return digest.digest(s.getBytes(CHARSET));
+    }
   }
 
+  /**
+   * Unsigned bytes as text in radix 2^radixSize, padded with 0 to the symbols of digestSize.
+   * The symbols go to a char array of the exact length, the String copies it.
+   */
   public String radixStr(byte[] bytes) {
+    if (radixSize < 1 || radixSize > 5) {
+      return radixStrBigInteger(bytes);
+    }
+    int radixSymbols = ((digestSize % radixSize == 0) ? 0 : 1) + (digestSize / radixSize);
+    int first = 0;
+    while (first < bytes.length && bytes[first] == 0) {
+      first++; // leading zero bytes add only padding
+    }
+    int bitLength = first == bytes.length ? 0
+        : (bytes.length - first) * 8 - (Integer.numberOfLeadingZeros(bytes[first] & 0xFF) - 24);
+    char[] chars = new char[Math.max((bitLength + radixSize - 1) / radixSize, radixSymbols)];
+    int mask = (1 << radixSize) - 1;
+    int bits = 0;
+    int bitCount = 0;
+    int p = chars.length;
+    for (int i = bytes.length - 1; i >= first; i--) { // least significant symbols first
+      bits |= (bytes[i] & 0xFF) << bitCount;
+      bitCount += 8;
+      for (; bitCount >= radixSize && p > 0; bitCount -= radixSize, bits >>>= radixSize) {
+        chars[--p] = DIGITS[bits & mask];
+      }
+    }
+    if (bitCount > 0 && p > 0) {
+      chars[--p] = DIGITS[bits & mask];
+    }
+    while (p > 0) {
+      chars[--p] = '0';
+    }
+    return new String(chars);
+  }
+
+  String radixStrBigInteger(byte[] bytes) {
     BigInteger bigInteger = new BigInteger(bytes);
     if ((bigInteger.compareTo(BigInteger.ZERO) < 0)) {
       bigInteger = bigInteger.add(BigInteger.ONE.shiftLeft(bytes.length << 3));
@@ -96,8 +165,45 @@ public class Concept {
     return encryption.encrypt(b);
   }
 
+  public byte[] encrypt(byte[] b, int off, int len) {
+    return encryption.encrypt(b, off, len);
+  }
+
   public byte[] decrypt(byte[] b) {
     return encryption.decrypt(b);
   }
 
+  /**
+   * Bounded least recently used map, striped to keep concurrent callers apart.
+   */
+  private static class Memo<K, V> {
+    private final Map<K, V>[] stripes;
+
+    @SuppressWarnings({"unchecked", "serial"})
+    Memo(int maxEntries) {
+      int stripeEntries = maxEntries / 16;
+      stripes = Stream.generate(() -> new LinkedHashMap<K, V>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+          return size() > stripeEntries;
+        }
+      }).limit(16).toArray(Map[]::new);
+    }
+
+    V get(K key, Function<K, V> function) {
+      Map<K, V> stripe = stripes[key.hashCode() & (stripes.length - 1)];
+      synchronized (stripe) {
+        V value = stripe.get(key);
+        if (value != null) {
+          return value;
+        }
+      }
+      V value = function.apply(key); // outside of the lock, a race computes the same value twice
+      synchronized (stripe) {
+        stripe.put(key, value);
+      }
+      return value;
+    }
+  }
+
 }
@@ -23,26 +23,37 @@ import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.internal.IteratorSupport;
 import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
 import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
 import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class DynamoDb extends AbstractStorage {
 
   public static final String META_KEY_PK = "pk";
   public static final String META_KEY_SK = "sk";
   public static final String META_KEY_BINARY = "b";
+  public static final String META_KEY_FOLDER = "f";
+  public static final String META_KEY_USAGE_BYTES = "s";
+  public static final String META_KEY_USAGE_ENTRIES = "n";
 
   private final Table table;
 
   public DynamoDb(Table table, Concept concept) throws IOException {
     super(concept);
     DEFAULT_CHUNKSIZE_BYTES = 399 * 1024;
+    DEFAULT_CHUNKSIZE_MAX_BYTES = DEFAULT_CHUNKSIZE_BYTES; // item size limit
+    DEFAULT_PIPELINE_DEPTH = 8; // small items, latency bound
     this.table = table;
     Path root = new Path("/");
     if (!exists(root)) {
@@ -51,8 +62,8 @@ public class DynamoDb extends AbstractStorage {
   }
 
   @Override
-  public byte[] load(byte[] pk, byte[] sk) throws IOException {
-    GetItemSpec spec = new GetItemSpec().withPrimaryKey(META_KEY_PK, pk, META_KEY_SK, sk);
+  public byte[] load(StorageKey key) throws IOException {
+    GetItemSpec spec = new GetItemSpec().withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk());
     Item item = table.getItem(spec);
     if (item == null) {
       throw new FileNotFoundException();
@@ -61,34 +72,112 @@ public class DynamoDb extends AbstractStorage {
   }
 
   @Override
-  public void save(byte[] pk, byte[] sk, byte[] b) throws IOException {
-    table.putItem(new Item()
-        .withPrimaryKey(META_KEY_PK, pk, META_KEY_SK, sk)
+  public void save(StorageKey key, byte[] b) throws IOException {
+    putNew(new Item()
+        .withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
         .withBinary(META_KEY_BINARY, b));
   }
 
   @Override
-  public void delete(byte[] pk, byte[] sk) throws IOException {
+  public void save(StorageKey key, byte[] b, boolean folder) throws IOException {
+    putNew(new Item()
+        .withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
+        .withBinary(META_KEY_BINARY, b)
+        .withBoolean(META_KEY_FOLDER, folder));
+  }
+
+  private void putNew(Item item) throws IOException {
+    try {
+      table.putItem(new PutItemSpec().withItem(item)
+          .withConditionExpression("attribute_not_exists(#sk)")
+          .withNameMap(new NameMap().with("#sk", META_KEY_SK)));
+    } catch (ConditionalCheckFailedException e) {
+      throw new FileAlreadyExistsException(null);
+    }
+  }
+
+  @Override
+  public void delete(StorageKey key) throws IOException {
     try {
       table.deleteItem(new DeleteItemSpec()
-          .withPrimaryKey(META_KEY_PK, pk, META_KEY_SK, sk)
+          .withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
           .withConditionExpression(META_KEY_SK + " = :chunk")
-          .withValueMap(new ValueMap().withBinary(":chunk", sk)));
+          .withValueMap(new ValueMap().withBinary(":chunk", key.getSk())));
     } catch (ConditionalCheckFailedException e) {
       throw new FileNotFoundException();
     }
   }
 
   @Override
-  public List<byte[]> list(byte[] pk) throws IOException {
+  public void replace(StorageKey key, byte[] b) throws IOException {
+    table.putItem(new Item() // unconditional put overwrites the item
+        .withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
+        .withBinary(META_KEY_BINARY, b));
+  }
+
+  /**
+   * Usage counters of the item are kept.
+   */
+  @Override
+  public void replace(StorageKey key, byte[] b, boolean folder) throws IOException {
+    table.updateItem(new UpdateItemSpec()
+        .withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
+        .withUpdateExpression("SET #b = :b, #f = :f")
+        .withNameMap(new NameMap().with("#b", META_KEY_BINARY).with("#f", META_KEY_FOLDER))
+        .withValueMap(new ValueMap().withBinary(":b", b).withBoolean(":f", folder)));
+  }
+
+  @Override
+  public Usage loadUsage(StorageKey key) throws IOException {
+    GetItemSpec spec = new GetItemSpec().withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
+        .withProjectionExpression("#sk, #s, #n")
+        .withNameMap(new NameMap().with("#sk", META_KEY_SK).with("#s", META_KEY_USAGE_BYTES)
+            .with("#n", META_KEY_USAGE_ENTRIES));
+    Item item = table.getItem(spec);
+    if (item == null) {
+      throw new FileNotFoundException();
+    }
+    return new Usage(item.isPresent(META_KEY_USAGE_BYTES) ? item.getLong(META_KEY_USAGE_BYTES) : 0L,
+        item.isPresent(META_KEY_USAGE_ENTRIES) ? item.getLong(META_KEY_USAGE_ENTRIES) : 0L);
+  }
+
+  @Override
+  public void addUsage(StorageKey key, long bytes, long entries) throws IOException {
+    try {
+      table.updateItem(new UpdateItemSpec()
+          .withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
+          .withUpdateExpression("ADD #s :s, #n :n")
+          .withConditionExpression("attribute_exists(#sk)") // no new item for deleted folder
+          .withNameMap(new NameMap().with("#sk", META_KEY_SK).with("#s", META_KEY_USAGE_BYTES)
+              .with("#n", META_KEY_USAGE_ENTRIES))
+          .withValueMap(new ValueMap().withLong(":s", bytes).withLong(":n", entries)));
+    } catch (ConditionalCheckFailedException e) {
+      throw new FileNotFoundException();
+    }
+  }
+
+  @Override
+  public Head head(StorageKey key) throws IOException {
+    GetItemSpec spec = new GetItemSpec().withPrimaryKey(META_KEY_PK, key.getPk(), META_KEY_SK, key.getSk())
+        .withProjectionExpression("#sk, #f") // without the binary
+        .withNameMap(new NameMap().with("#sk", META_KEY_SK).with("#f", META_KEY_FOLDER));
+    Item item = table.getItem(spec);
+    if (item == null) {
+      return Head.MISSING;
+    }
+    if (!item.isPresent(META_KEY_FOLDER)) {
+      return Head.RECORD;
+    }
+    return item.getBoolean(META_KEY_FOLDER) ? Head.FOLDER : Head.FILE;
+  }
+
+  @Override
+  public Stream<byte[]> listStream(StorageKey partition) throws IOException {
     QuerySpec querySpec = new QuerySpec().withKeyConditionExpression(META_KEY_PK + " = :pk")
-        .withValueMap(new ValueMap().withBinary(":pk", pk));
+        .withValueMap(new ValueMap().withBinary(":pk", partition.getPk()));
     ItemCollection<QueryOutcome> items = table.query(querySpec);
-    IteratorSupport<Item, QueryOutcome> iterator = items.iterator();
-    List<byte[]> list = new ArrayList<>();
-    while (iterator.hasNext()) {
-      list.add(iterator.next().getBinary(META_KEY_BINARY));
-    }
-    return list;
+    IteratorSupport<Item, QueryOutcome> iterator = items.iterator(); // next page is queried when needed
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+        .map(item -> item.getBinary(META_KEY_BINARY));
   }
 }
@@ -17,19 +17,25 @@
 package ab.usfs;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class FileSystem extends AbstractStorage {
 
   protected final Concept concept;
   protected final String mountFolder;
+  private static final String TEMP_SUFFIX = ".new"; // records have no extension
+  private final Object[] replaceLocks = Stream.generate(Object::new).limit(64).toArray();
 
   public FileSystem(String mountFolder,  Concept concept) throws IOException {
     super(concept);
@@ -41,51 +47,91 @@ public class FileSystem extends AbstractStorage {
     }
   }
 
-  public Path path(byte[] pk) {
-    return Paths.get(mountFolder, concept.radixStr(pk));
-  }
-
-  public Path path(byte[] pk, byte[] sk) {
-    return Paths.get(mountFolder, concept.radixStr(pk), concept.radixStr(sk));
+  public Path path(StorageKey key) {
+    if (key.getPartition() == key) {
+      return Paths.get(mountFolder, concept.radixStr(key.getPk()));
+    }
+    return Paths.get(mountFolder, concept.radixStr(key.getPk()), concept.radixStr(key.getSk()));
   }
 
   @Override
-  public byte[] load(byte[] pk, byte[] sk) throws IOException {
-    return Files.readAllBytes(path(pk, sk));
+  public byte[] load(StorageKey key) throws IOException {
+    return Files.readAllBytes(path(key));
   }
 
   @Override
-  public void save(byte[] pk, byte[] sk, byte[] b) throws IOException {
-    Path path = path(pk, sk);
+  public void save(StorageKey key, byte[] b) throws IOException {
+    Path path = path(key);
     Files.createDirectories(path.getParent());
     Files.write(path, b, StandardOpenOption.CREATE_NEW);
   }
 
   @Override
-  public void delete(byte[] pk, byte[] sk) throws IOException {
-    Files.delete(path(pk, sk));
+  public void delete(StorageKey key) throws IOException {
+    Files.delete(path(key));
+  }
+
+  @Override
+  public Head head(StorageKey key) throws IOException {
+    return Files.exists(path(key)) ? Head.RECORD : Head.MISSING;
+  }
+
+  /**
+   * Written to the sibling record.new and moved over the record, short names for 8.3 file systems.
+   */
+  @Override
+  public void replace(StorageKey key, byte[] b) throws IOException {
+    Path path = path(key);
+    Files.createDirectories(path.getParent());
+    Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+    synchronized (replaceLocks[Math.floorMod(key.hashCode(), replaceLocks.length)]) { // one writer per name
+      try {
+        Files.write(temp, b); // left over by a crash otherwise
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    }
   }
 
   @Override
   public void delete(ab.usfs.Path path) throws IOException {
     super.delete(path);
-    try {
-      Files.delete(path(getFpk(path)));
-    } catch (NoSuchFileException e) {
-      // expected, do nothing
+    List<StorageKey> partitions = new ArrayList<>(getChildPartitions(path));
+    if (partitions.size() > 1) {
+      partitions.add(StorageKey.of(getFpk(path))); // chunks are not sharded
+    }
+    for (StorageKey partition : partitions) {
+      try {
+        Files.delete(path(partition));
+      } catch (NoSuchFileException e) {
+        // expected, do nothing
+      }
     }
   }
 
   @Override
-  public List<byte[]> list(byte[] pk) throws IOException {
-    List<byte[]> list = new ArrayList<>();
-    try (DirectoryStream<Path> paths = Files.newDirectoryStream(path(pk))) {
-      for (Path path : paths) {
-        list.add(Files.readAllBytes(path));
-      }
+  public Stream<byte[]> listStream(StorageKey partition) throws IOException {
+    DirectoryStream<Path> paths;
+    try {
+      paths = Files.newDirectoryStream(path(partition));
     } catch (NoSuchFileException e) {
-      // expected, do nothing
+      return Stream.empty(); // expected
     }
-    return list;
+    return StreamSupport.stream(paths.spliterator(), false)
+        .filter(path -> !path.getFileName().toString().endsWith(TEMP_SUFFIX)) // replace in progress
+        .map(path -> {
+          try {
+            return Files.readAllBytes(path);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        }).onClose(() -> {
+          try {
+            paths.close();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
   }
 }
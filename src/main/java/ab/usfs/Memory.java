@@ -17,23 +17,25 @@
 package ab.usfs;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 public class Memory extends AbstractStorage {
 
-  public static final Map<BigInteger, byte[]> EMPTY_SK = Collections.emptyMap();
+  public static final Map<StorageKey, byte[]> EMPTY_SK = Collections.emptyMap();
 
-  private final Map<BigInteger, Map<BigInteger, byte[]>> memory;
+  private final Map<StorageKey, Map<StorageKey, byte[]>> memory;
 
-  public Memory(Map<BigInteger, Map<BigInteger, byte[]>> memory, Concept concept) throws IOException {
+  public Memory(Map<StorageKey, Map<StorageKey, byte[]>> memory, Concept concept) throws IOException {
     super(concept);
+    DEFAULT_PIPELINE_DEPTH = 0; // nothing to wait for, and the map is not expected to be thread-safe
+    DEFAULT_READ_AHEAD_BYTES = 0;
+    DEFAULT_LIST_PARALLELISM = 0;
     this.memory = memory;
     Path root = new Path("/");
     if (!exists(root)) {
@@ -42,8 +44,8 @@ public class Memory extends AbstractStorage {
   }
 
   @Override
-  public byte[] load(byte[] pk, byte[] sk) throws IOException {
-    byte[] bytes = memory.getOrDefault(new BigInteger(pk), EMPTY_SK).get(new BigInteger(sk));
+  public byte[] load(StorageKey key) throws IOException {
+    byte[] bytes = memory.getOrDefault(key.getPartition(), EMPTY_SK).get(key);
     if (bytes == null) {
       throw new NoSuchFileException(null); // null is documented
     }
@@ -51,21 +53,32 @@ public class Memory extends AbstractStorage {
   }
 
   @Override
-  public void save(byte[] pk, byte[] sk, byte[] b) throws IOException {
-    if (memory.computeIfAbsent(new BigInteger(pk), k -> new HashMap<>()).putIfAbsent(new BigInteger(sk), b) != null) {
+  public void save(StorageKey key, byte[] b) throws IOException {
+    if (memory.computeIfAbsent(key.getPartition(), k -> new HashMap<>()).putIfAbsent(key, b) != null) {
       throw new FileAlreadyExistsException(null); // null is documented
     }
   }
 
   @Override
-  public void delete(byte[] pk, byte[] sk) throws IOException {
-    if (memory.getOrDefault(new BigInteger(pk), EMPTY_SK).remove(new BigInteger(sk)) == null) {
+  public void delete(StorageKey key) throws IOException {
+    if (memory.getOrDefault(key.getPartition(), EMPTY_SK).remove(key) == null) {
       throw new NoSuchFileException(null); // null is documented
     }
   }
 
   @Override
-  public List<byte[]> list(byte[] pk) throws IOException {
-    return new ArrayList<>(memory.getOrDefault(new BigInteger(pk), EMPTY_SK).values());
+  public void replace(StorageKey key, byte[] b) throws IOException {
+    memory.computeIfAbsent(key.getPartition(), k -> new HashMap<>()).put(key, b);
+  }
+
+  @Override
+  public Head head(StorageKey key) throws IOException {
+    return memory.getOrDefault(key.getPartition(), EMPTY_SK).containsKey(key) ? Head.RECORD
+        : Head.MISSING;
+  }
+
+  @Override
+  public Stream<byte[]> listStream(StorageKey partition) throws IOException {
+    return new ArrayList<>(memory.getOrDefault(partition, EMPTY_SK).values()).stream(); // map can change
   }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import ab.Rfc7231;
+import lombok.Builder;
+import lombok.Value;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Properties;
+
+import static ab.usfs.AbstractStorage.*;
+
+/**
+ * Metadata record of file or folder. Saved in binary format, the first byte is never in java.util.Properties text,
+ * records saved as properties are still readable.
+ */
+@Value
+@Builder(toBuilder = true)
+public class Meta {
+
+  public static final byte MAGIC = (byte) 0xB5; // not ascii, java.util.Properties.store writes ascii
+  public static final byte VERSION = 1;
+
+  private static final int FLAG_FOLDER = 1;
+  private static final int FLAG_MANIFEST = 2;
+  private static final int FLAG_CONTENT = 4;
+  private static final int FLAG_SEGMENT = 8;
+  private static final int FLAG_USAGE = 16;
+  private static final int FLAG_GENERATIONS = 32;
+
+  boolean folder;
+  String fileName; // empty for technical entries
+  long contentLength;
+  long lastModified; // epoch millis
+  int chunkSize; // manifest, 0 if the file was saved without it
+  int chunkSizeMax;
+  @Builder.Default
+  long chunkCount = -1;
+  byte[] content; // small file inline
+  Long segment; // small file packed
+  int segmentOffset;
+  long usageBytes; // folder, if the backend has no counters
+  long usageEntries;
+  ChunkGenerations generations; // null if every chunk is in generation 0
+
+  private boolean hasManifest() {
+    return chunkSize > 0 || chunkCount >= 0;
+  }
+
+  private boolean hasUsage() {
+    return usageBytes != 0 || usageEntries != 0;
+  }
+
+  public Instant getLastModifiedInstant() {
+    return Instant.ofEpochMilli(lastModified);
+  }
+
+  private boolean hasGenerations() {
+    return generations != null && !generations.isInitial();
+  }
+
+  public byte[] toBytes() {
+    byte[] name = fileName == null ? new byte[0] : fileName.getBytes(StandardCharsets.UTF_8);
+    long[] runs = hasGenerations() ? generations.toArray() : new long[0];
+    ByteBuffer buffer = ByteBuffer.allocate(3 + 10 + 10 + 5 + name.length + 5 + 5 + 10
+        + (content == null ? 0 : 5 + content.length) + 8 + 5 + 10 + 10 + 5 + 10 * runs.length);
+    buffer.put(MAGIC).put(VERSION).put((byte) ((folder ? FLAG_FOLDER : 0) | (hasManifest() ? FLAG_MANIFEST : 0)
+        | (content != null ? FLAG_CONTENT : 0) | (segment != null ? FLAG_SEGMENT : 0)
+        | (hasUsage() ? FLAG_USAGE : 0) | (hasGenerations() ? FLAG_GENERATIONS : 0)));
+    putVarLong(buffer, contentLength);
+    putVarLong(buffer, lastModified);
+    putVarLong(buffer, name.length);
+    buffer.put(name);
+    if (hasManifest()) {
+      putVarLong(buffer, chunkSize);
+      putVarLong(buffer, chunkSizeMax);
+      putVarLong(buffer, chunkCount);
+    }
+    if (content != null) {
+      putVarLong(buffer, content.length);
+      buffer.put(content);
+    }
+    if (segment != null) {
+      buffer.putLong(segment);
+      putVarLong(buffer, segmentOffset);
+    }
+    if (hasUsage()) {
+      putVarLong(buffer, usageBytes);
+      putVarLong(buffer, usageEntries);
+    }
+    if (hasGenerations()) {
+      putVarLong(buffer, runs.length);
+      for (long run : runs) {
+        putVarLong(buffer, run);
+      }
+    }
+    byte[] b = new byte[buffer.position()];
+    System.arraycopy(buffer.array(), 0, b, 0, b.length);
+    return b;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the record is not metadata
+   */
+  public static Meta parse(byte[] b) {
+    if (b.length == 0 || b[0] != MAGIC) {
+      return parseProperties(b);
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(b);
+      buffer.get();
+      byte version = buffer.get();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("metadata version " + version);
+      }
+      int flags = buffer.get();
+      if ((flags & ~(FLAG_FOLDER | FLAG_MANIFEST | FLAG_CONTENT | FLAG_SEGMENT | FLAG_USAGE
+          | FLAG_GENERATIONS)) != 0) {
+        throw new IllegalArgumentException("metadata flags " + flags);
+      }
+      MetaBuilder builder = builder()
+          .folder((flags & FLAG_FOLDER) != 0)
+          .contentLength(getVarLong(buffer))
+          .lastModified(getVarLong(buffer));
+      byte[] name = new byte[(int) getVarLong(buffer)];
+      buffer.get(name);
+      builder.fileName(new String(name, StandardCharsets.UTF_8));
+      if ((flags & FLAG_MANIFEST) != 0) {
+        builder.chunkSize((int) getVarLong(buffer)).chunkSizeMax((int) getVarLong(buffer)).chunkCount(getVarLong(buffer));
+      }
+      if ((flags & FLAG_CONTENT) != 0) {
+        byte[] content = new byte[(int) getVarLong(buffer)];
+        buffer.get(content);
+        builder.content(content);
+      }
+      if ((flags & FLAG_SEGMENT) != 0) {
+        builder.segment(buffer.getLong()).segmentOffset((int) getVarLong(buffer));
+      }
+      if ((flags & FLAG_USAGE) != 0) {
+        builder.usageBytes(getVarLong(buffer)).usageEntries(getVarLong(buffer));
+      }
+      if ((flags & FLAG_GENERATIONS) != 0) {
+        long[] runs = new long[(int) getVarLong(buffer)];
+        for (int i = 0; i < runs.length; i++) {
+          runs[i] = getVarLong(buffer);
+        }
+        builder.generations(new ChunkGenerations(runs));
+      }
+      if (buffer.hasRemaining()) {
+        throw new IllegalArgumentException("metadata has " + buffer.remaining() + " trailing bytes");
+      }
+      return builder.build();
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("metadata is corrupted", e);
+    }
+  }
+
+  private static Meta parseProperties(byte[] b) {
+    Properties properties = new Properties();
+    try (InputStream stream = new ByteArrayInputStream(b)) {
+      properties.load(stream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // IOException is not expected for ByteArrayInputStream
+    }
+    MetaBuilder builder = builder()
+        .folder(Boolean.parseBoolean(properties.getProperty(META_KEY_IS_FOLDER)))
+        .fileName(properties.getProperty(META_KEY_FILE_NAME, ""))
+        .contentLength(Long.parseLong(properties.getProperty(META_KEY_CONTENT_LENGTH, "0")));
+    String lastModified = properties.getProperty(META_KEY_LAST_MODIFIED);
+    if (lastModified != null) {
+      builder.lastModified(Rfc7231.instant(lastModified).toEpochMilli());
+    }
+    String chunkSize = properties.getProperty(META_KEY_CHUNK_SIZE);
+    if (chunkSize != null) {
+      builder.chunkSize(Integer.parseInt(chunkSize))
+          .chunkSizeMax(Integer.parseInt(properties.getProperty(META_KEY_CHUNK_SIZE_MAX, chunkSize)));
+    }
+    String chunkCount = properties.getProperty(META_KEY_CHUNK_COUNT);
+    if (chunkCount != null) {
+      builder.chunkCount(Long.parseLong(chunkCount));
+    }
+    String content = properties.getProperty(META_KEY_CONTENT);
+    if (content != null) {
+      builder.content(Base64.getDecoder().decode(content));
+    }
+    String segment = properties.getProperty(META_KEY_SEGMENT);
+    if (segment != null) {
+      builder.segment(Long.parseLong(segment))
+          .segmentOffset(Integer.parseInt(properties.getProperty(META_KEY_SEGMENT_OFFSET)));
+    }
+    String generations = properties.getProperty(META_KEY_CHUNK_GENERATIONS);
+    if (generations != null) {
+      builder.generations(ChunkGenerations.parse(generations));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Properties format, for tests and downgrade.
+   */
+  public byte[] toProperties() {
+    Properties properties = new Properties();
+    properties.setProperty(META_KEY_IS_FOLDER, Boolean.toString(folder));
+    properties.setProperty(META_KEY_FILE_NAME, fileName);
+    properties.setProperty(META_KEY_CONTENT_LENGTH, Long.toString(contentLength));
+    properties.setProperty(META_KEY_LAST_MODIFIED, Rfc7231.string(getLastModifiedInstant()));
+    if (chunkSize > 0) {
+      properties.setProperty(META_KEY_CHUNK_SIZE, Integer.toString(chunkSize));
+      properties.setProperty(META_KEY_CHUNK_SIZE_MAX, Integer.toString(chunkSizeMax));
+    }
+    if (chunkCount >= 0) {
+      properties.setProperty(META_KEY_CHUNK_COUNT, Long.toString(chunkCount));
+    }
+    if (content != null) {
+      properties.setProperty(META_KEY_CONTENT, Base64.getEncoder().encodeToString(content));
+    }
+    if (segment != null) {
+      properties.setProperty(META_KEY_SEGMENT, Long.toString(segment));
+      properties.setProperty(META_KEY_SEGMENT_OFFSET, Integer.toString(segmentOffset));
+    }
+    if (hasGenerations()) {
+      properties.setProperty(META_KEY_CHUNK_GENERATIONS, generations.toString());
+    }
+    try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
+      properties.store(stream, null);
+      return stream.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void putVarLong(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) (value & 0x7F | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private static long getVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("varint is too long");
+  }
+
+}
@@ -16,15 +16,23 @@
 
 package ab.usfs;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
 import org.bson.Document;
 import org.bson.types.Binary;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class MongoDb extends AbstractStorage {
   // storage abstraction is dangerously powerful
@@ -33,12 +41,18 @@ public class MongoDb extends AbstractStorage {
   public static final String META_KEY_ID = "_id";
   public static final String META_KEY_PK = "_pk";
   public static final String META_KEY_BINARY = "b";
+  public static final String META_KEY_FOLDER = "f";
+  public static final String META_KEY_USAGE_BYTES = "s";
+  public static final String META_KEY_USAGE_ENTRIES = "n";
 
   private final MongoCollection<Document> collection;
 
   public MongoDb(MongoDatabase mongoDatabase, Concept concept) throws IOException {
     super(concept);
     DEFAULT_CHUNKSIZE_BYTES = 16383 * 1024;
+    DEFAULT_CHUNKSIZE_MAX_BYTES = DEFAULT_CHUNKSIZE_BYTES; // document size limit
+    DEFAULT_PIPELINE_DEPTH = 2; // chunks are big already
+    DEFAULT_READ_AHEAD_BYTES = 2 * DEFAULT_CHUNKSIZE_BYTES;
     collection = mongoDatabase.getCollection("usfs");
     Path root = new Path("/");
     if (!exists(root)) {
@@ -48,8 +62,8 @@ public class MongoDb extends AbstractStorage {
   }
 
   @Override
-  public byte[] load(byte[] pk, byte[] sk) throws IOException {
-    Document item = collection.find(new Document(META_KEY_ID, concat(pk, sk))).first();
+  public byte[] load(StorageKey key) throws IOException {
+    Document item = collection.find(new Document(META_KEY_ID, key.getId())).first();
     if (item == null) {
       throw new FileNotFoundException();
     }
@@ -57,25 +71,93 @@ public class MongoDb extends AbstractStorage {
   }
 
   @Override
-  public void save(byte[] pk, byte[] sk, byte[] b) throws IOException {
-    collection.insertOne(new Document(META_KEY_ID, concat(pk, sk))
-        .append(META_KEY_PK, pk)
+  public void save(StorageKey key, byte[] b) throws IOException {
+    insertNew(new Document(META_KEY_ID, key.getId())
+        .append(META_KEY_PK, key.getPk())
         .append(META_KEY_BINARY, b));
   }
 
   @Override
-  public void delete(byte[] pk, byte[] sk) throws IOException {
-    if (collection.deleteOne(new Document(META_KEY_ID, concat(pk, sk))).getDeletedCount() == 0) {
+  public void save(StorageKey key, byte[] b, boolean folder) throws IOException {
+    insertNew(new Document(META_KEY_ID, key.getId())
+        .append(META_KEY_PK, key.getPk())
+        .append(META_KEY_BINARY, b)
+        .append(META_KEY_FOLDER, folder));
+  }
+
+  private void insertNew(Document document) throws IOException {
+    try {
+      collection.insertOne(document);
+    } catch (MongoWriteException e) {
+      if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+        throw new FileAlreadyExistsException(null);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void delete(StorageKey key) throws IOException {
+    if (collection.deleteOne(new Document(META_KEY_ID, key.getId())).getDeletedCount() == 0) {
       throw new FileNotFoundException();
     }
   }
 
   @Override
-  public List<byte[]> list(byte[] pk) throws IOException {
-    List<byte[]> list = new ArrayList<>();
-    for (Document document : collection.find(new Document(META_KEY_PK, pk))) {
-      list.add(document.get(META_KEY_BINARY, Binary.class).getData());
+  public void replace(StorageKey key, byte[] b) throws IOException {
+    collection.replaceOne(new Document(META_KEY_ID, key.getId()), new Document(META_KEY_ID, key.getId())
+        .append(META_KEY_PK, key.getPk())
+        .append(META_KEY_BINARY, b), new ReplaceOptions().upsert(true));
+  }
+
+  /**
+   * Usage counters of the document are kept.
+   */
+  @Override
+  public void replace(StorageKey key, byte[] b, boolean folder) throws IOException {
+    collection.updateOne(new Document(META_KEY_ID, key.getId()), new Document("$set",
+        new Document(META_KEY_PK, key.getPk())
+        .append(META_KEY_BINARY, b)
+        .append(META_KEY_FOLDER, folder)), new UpdateOptions().upsert(true));
+  }
+
+  @Override
+  public Usage loadUsage(StorageKey key) throws IOException {
+    Document item = collection.find(new Document(META_KEY_ID, key.getId()))
+        .projection(new Document(META_KEY_USAGE_BYTES, 1).append(META_KEY_USAGE_ENTRIES, 1)).first();
+    if (item == null) {
+      throw new FileNotFoundException();
     }
-    return list;
+    Number bytes = item.get(META_KEY_USAGE_BYTES, Number.class);
+    Number entries = item.get(META_KEY_USAGE_ENTRIES, Number.class);
+    return new Usage(bytes == null ? 0L : bytes.longValue(), entries == null ? 0L : entries.longValue());
+  }
+
+  @Override
+  public void addUsage(StorageKey key, long bytes, long entries) throws IOException {
+    if (collection.updateOne(new Document(META_KEY_ID, key.getId()), new Document("$inc",
+        new Document(META_KEY_USAGE_BYTES, bytes).append(META_KEY_USAGE_ENTRIES, entries))).getMatchedCount() == 0) {
+      throw new FileNotFoundException();
+    }
+  }
+
+  @Override
+  public Head head(StorageKey key) throws IOException {
+    Document item = collection.find(new Document(META_KEY_ID, key.getId()))
+        .projection(new Document(META_KEY_FOLDER, 1)).first(); // without the binary
+    if (item == null) {
+      return Head.MISSING;
+    }
+    Boolean folder = item.getBoolean(META_KEY_FOLDER);
+    return folder == null ? Head.RECORD : folder ? Head.FOLDER : Head.FILE;
+  }
+
+  @Override
+  public Stream<byte[]> listStream(StorageKey partition) throws IOException {
+    MongoCursor<Document> cursor = collection.find(new Document(META_KEY_PK, partition.getPk()))
+        .iterator(); // batches on demand
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED), false)
+        .map(document -> document.get(META_KEY_BINARY, Binary.class).getData())
+        .onClose(cursor::close);
   }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tokens of file names for the name index, and glob patterns to search it.
+ * A name is indexed by the whole name and by every word in it, case insensitive.
+ */
+public class NameIndex {
+
+  private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+
+  private NameIndex() {
+  }
+
+  public static Set<String> tokens(String name) {
+    Set<String> tokens = new LinkedHashSet<>();
+    String lowerCase = name.toLowerCase(Locale.ROOT);
+    tokens.add(lowerCase);
+    Matcher matcher = WORD.matcher(lowerCase);
+    while (matcher.find()) {
+      tokens.add(matcher.group());
+    }
+    return tokens;
+  }
+
+  /**
+   * The longest token every matching name has, null if the glob has no whole word.
+   */
+  public static String token(String glob) {
+    String lowerCase = glob.toLowerCase(Locale.ROOT);
+    if (lowerCase.indexOf('*') < 0 && lowerCase.indexOf('?') < 0) {
+      return lowerCase;
+    }
+    String token = null;
+    Matcher matcher = WORD.matcher(lowerCase);
+    while (matcher.find()) {
+      boolean whole = (matcher.start() == 0 || !isWildcard(lowerCase.charAt(matcher.start() - 1)))
+          && (matcher.end() == lowerCase.length() || !isWildcard(lowerCase.charAt(matcher.end())));
+      if (whole && (token == null || matcher.group().length() > token.length())) {
+        token = matcher.group();
+      }
+    }
+    return token;
+  }
+
+  private static boolean isWildcard(char c) {
+    return c == '*' || c == '?';
+  }
+
+  /**
+   * Case insensitive pattern of the glob, * is any text and ? is any character.
+   */
+  public static Pattern pattern(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int literal = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (isWildcard(c)) {
+        if (i > literal) {
+          regex.append(Pattern.quote(glob.substring(literal, i)));
+        }
+        regex.append(c == '*' ? ".*" : ".");
+        literal = i + 1;
+      }
+    }
+    if (glob.length() > literal) {
+      regex.append(Pattern.quote(glob.substring(literal)));
+    }
+    return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+  }
+
+}
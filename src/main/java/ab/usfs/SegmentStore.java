@@ -0,0 +1,443 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Small files packed together in shared segment records, one backend call for many files.
+ * File metadata points at the segment and the offset, segments are written once and never updated.
+ * Deleted files leave garbage in segments until compaction.
+ * <p>
+ * Group commit: the writer waits for the save, files closed meanwhile go together to the next segment.
+ * With linger the segment is saved when it is full or when the linger time is over, the writer does not wait.
+ * The metadata of each file is written after the segment, so the file appears then.
+ */
+@Slf4j
+public class SegmentStore {
+
+  private static final int MAGIC = 0x55534547; // USEG
+  private static final int PARTITIONS = 256; // the first byte of the id, spreads the load of the backend
+  private static final int SAVE_ATTEMPTS = 16; // 2^32 ids, a free one is found at once
+
+  private final AbstractStorage storage;
+  private final Concept concept;
+  private final byte[] partitionPrefix;
+  private Segment open; // taking files
+  private boolean saving;
+  private ScheduledExecutorService scheduler; // lazy, saves lingering segments
+  private long cachedId;
+  private byte[] cached; // last segment, files in a folder are often read together
+
+  SegmentStore(AbstractStorage storage, Concept concept) {
+    this.storage = storage;
+    this.concept = concept;
+    this.partitionPrefix = concept.digest("segments"); // not a path, paths start with slash
+  }
+
+  /**
+   * Partition from the first byte of the id and the rest as sk, the whole id is the key.
+   * The partition has the shape of a folder shard, a sharded folder of the same digest shares it.
+   */
+  private StorageKey getKey(long id) {
+    byte[] pk = Arrays.copyOf(partitionPrefix, partitionPrefix.length + 1);
+    pk[partitionPrefix.length] = (byte) (id >>> 24);
+    return StorageKey.of(pk, new byte[]{(byte) (id >>> 16), (byte) (id >>> 8), (byte) id});
+  }
+
+  private StorageKey getPartition(int bucket) {
+    byte[] pk = Arrays.copyOf(partitionPrefix, partitionPrefix.length + 1);
+    pk[partitionPrefix.length] = (byte) bucket;
+    return StorageKey.of(pk);
+  }
+
+  @Getter
+  @RequiredArgsConstructor
+  public static class Entry {
+    private final long segment;
+    private final int offset;
+  }
+
+  /**
+   * Metadata write of the file, after its segment is saved or failed.
+   */
+  public interface Commit {
+    void commit(Entry entry, IOException failure) throws IOException;
+  }
+
+  private static class File {
+    private final StorageKey key;
+    private final byte[] content;
+    private final Commit commit;
+    private boolean waiting; // the writer waits for the save and commits
+    private long segment;
+    private int offset;
+
+    private File(StorageKey key, byte[] content, Commit commit) {
+      this.key = key;
+      this.content = content;
+      this.commit = commit;
+    }
+
+    private int size() {
+      return 12 + key.getPk().length + key.getSk().length + content.length; // with header entry
+    }
+  }
+
+  private static class Segment {
+    private long id = -1; // until saved
+    private final List<File> files = new ArrayList<>();
+    private int size;
+    private boolean claimed; // by the saving thread
+    private boolean saved;
+    private boolean committed;
+    private IOException exception;
+
+    private void add(File file) {
+      files.add(file);
+      size += file.size();
+    }
+  }
+
+  /**
+   * Add the file content to the open segment, commit runs when the segment is saved.
+   * @param key of the file metadata, compaction checks that it still points at this entry
+   * @param lingerMillis wait for more files, 0 to save now and return when the file is committed
+   */
+  public void append(StorageKey key, byte[] content, int segmentBytes, int lingerMillis, Commit commit)
+      throws IOException {
+    File file = new File(key, content, commit);
+    file.waiting = lingerMillis <= 0;
+    Segment full = null;
+    Segment segment;
+    synchronized (this) {
+      if (open != null && 16 + open.size + file.size() > segmentBytes) {
+        full = open;
+        open = null;
+      }
+      if (open == null) {
+        open = new Segment();
+        if (lingerMillis > 0) {
+          Segment lingering = open;
+          getScheduler().schedule(() -> {
+            flush(lingering);
+            return null;
+          }, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+      }
+      segment = open;
+      segment.add(file);
+    }
+    if (full != null) {
+      flush(full); // size trigger, by the file that does not fit
+    }
+    if (!file.waiting) {
+      return;
+    }
+    flush(segment);
+    synchronized (this) {
+      while (!segment.saved) {
+        await();
+      }
+    }
+    commit.commit(segment.exception == null ? new Entry(segment.id, file.offset) : null, segment.exception);
+    if (segment.exception != null) {
+      throw new IOException("segment failed", segment.exception);
+    }
+  }
+
+  /**
+   * Save the open segment now and commit its files.
+   */
+  public void flush() throws IOException {
+    Segment segment;
+    synchronized (this) {
+      segment = open;
+    }
+    if (segment == null) {
+      return;
+    }
+    flush(segment);
+    synchronized (this) {
+      while (!segment.committed) {
+        await();
+      }
+    }
+    if (segment.exception != null) {
+      throw new IOException("segment failed", segment.exception);
+    }
+  }
+
+  /**
+   * Save the segment unless another thread does. Files closed meanwhile go together to the next segment.
+   */
+  private void flush(Segment segment) throws IOException {
+    synchronized (this) {
+      while (saving && !segment.claimed) {
+        await();
+      }
+      if (segment.claimed) {
+        return;
+      }
+      segment.claimed = true;
+      saving = true; // this thread saves the segment for everybody in it
+      if (open == segment) {
+        open = null;
+      }
+    }
+    try {
+      save(segment);
+    } catch (IOException | RuntimeException e) {
+      segment.exception = e instanceof IOException ? (IOException) e : new IOException(e);
+      log.warn("segment of " + segment.files.size() + " files failed, " + e);
+    } finally {
+      synchronized (this) {
+        segment.saved = true;
+        saving = false;
+        notifyAll();
+      }
+    }
+    for (File file : segment.files) {
+      if (file.waiting) {
+        continue; // the writer commits
+      }
+      try {
+        file.commit.commit(segment.exception == null ? new Entry(segment.id, file.offset) : null,
+            segment.exception);
+      } catch (IOException | RuntimeException e) {
+        log.warn("packed file " + file.key + " is not saved, " + e);
+      }
+    }
+    synchronized (this) {
+      segment.committed = true; // lingering files, waiting writers commit their own
+      notifyAll();
+    }
+  }
+
+  private void await() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  private synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "usfs-segment");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return scheduler;
+  }
+
+  private void save(Segment segment) throws IOException {
+    int headerSize = 16;
+    for (File file : segment.files) {
+      headerSize += 12 + file.key.getPk().length + file.key.getSk().length;
+    }
+    ByteArrayOutputStream stream = new ByteArrayOutputStream(16 + segment.size);
+    DataOutputStream data = new DataOutputStream(stream);
+    data.writeInt(MAGIC);
+    data.writeLong(0); // id, set below
+    data.writeInt(segment.files.size());
+    int offset = headerSize;
+    for (File file : segment.files) {
+      data.writeShort(file.key.getPk().length);
+      data.write(file.key.getPk());
+      data.writeShort(file.key.getSk().length);
+      data.write(file.key.getSk());
+      data.writeInt(offset);
+      data.writeInt(file.content.length);
+      file.offset = offset;
+      offset += file.content.length;
+    }
+    for (File file : segment.files) {
+      data.write(file.content);
+    }
+    byte[] b = stream.toByteArray();
+    for (int attempt = 1; segment.id < 0; attempt++) {
+      long id = ThreadLocalRandom.current().nextLong(1L << 32); // 4 bytes of the key, long in metadata
+      ByteBuffer.wrap(b).putLong(4, id);
+      try {
+        storage.saveByte(getKey(id), b);
+        segment.id = id;
+      } catch (FileAlreadyExistsException e) {
+        if (attempt >= SAVE_ATTEMPTS) {
+          throw e;
+        }
+        log.debug("segment id collision, " + id);
+      }
+    }
+    synchronized (this) {
+      cachedId = segment.id;
+      cached = b;
+    }
+  }
+
+  private byte[] loadSegment(long id) throws IOException {
+    synchronized (this) {
+      if (cached != null && cachedId == id) {
+        return cached;
+      }
+    }
+    byte[] b = storage.loadByte(getKey(id));
+    synchronized (this) {
+      cachedId = id;
+      cached = b;
+    }
+    return b;
+  }
+
+  public byte[] load(long id, int offset, int length) throws IOException {
+    return Arrays.copyOfRange(loadSegment(id), offset, offset + length);
+  }
+
+  /**
+   * Rewrite segments with less live content than minLiveRatio and delete them. Live files of several segments
+   * go together to new segments. Files are checked and moved one by one, run it when packed files are not written.
+   * @return number of deleted segments
+   */
+  public int compact(double minLiveRatio, int segmentBytes) throws IOException {
+    flush(); // lingering files point at no segment yet
+    List<Long> moved = new ArrayList<>(); // old segments with all live files in new segments
+    Set<Long> written = new HashSet<>(); // new segments can show up in the listing
+    Segment segment = new Segment();
+    int deleted = 0;
+    for (int bucket = 0; bucket < PARTITIONS; bucket++) {
+      try (Stream<byte[]> records = storage.listStream(getPartition(bucket))) {
+        Iterator<byte[]> iterator = records.iterator(); // one segment in memory at a time
+        while (iterator.hasNext()) {
+          byte[] b = concept.decrypt(iterator.next());
+          ByteBuffer buffer = ByteBuffer.wrap(b);
+          if (b.length < 16 || buffer.getInt() != MAGIC) {
+            continue; // not a segment, short digests share partitions
+          }
+          long id = buffer.getLong();
+          if (written.contains(id)) {
+            continue;
+          }
+          List<File> live = new ArrayList<>();
+          long liveBytes = 0;
+          try {
+            for (int n = buffer.getInt(); n > 0; n--) {
+              byte[] filePk = new byte[buffer.getShort()];
+              buffer.get(filePk);
+              byte[] fileSk = new byte[buffer.getShort()];
+              buffer.get(fileSk);
+              int offset = buffer.getInt();
+              int length = buffer.getInt();
+              StorageKey key = StorageKey.of(filePk, fileSk);
+              if (loadLiveMeta(key, id, offset) != null) {
+                File file = new File(key, Arrays.copyOfRange(b, offset, offset + length), null);
+                file.segment = id; // old segment and offset until moved
+                file.offset = offset;
+                live.add(file);
+                liveBytes += length;
+              }
+            }
+          } catch (BufferUnderflowException | IllegalArgumentException e) {
+            log.warn("segment " + id + " is corrupted, skipped");
+            continue;
+          }
+          if (liveBytes >= minLiveRatio * b.length) {
+            continue;
+          }
+          for (File file : live) {
+            if (!segment.files.isEmpty() && 16 + segment.size + file.size() > segmentBytes) {
+              deleted += move(segment, moved, written);
+              segment = new Segment();
+            }
+            segment.add(file);
+          }
+          moved.add(id);
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+    deleted += move(segment, moved, written);
+    return deleted;
+  }
+
+  /**
+   * Metadata of the file if it still points at the segment entry, or null.
+   */
+  private Meta loadLiveMeta(StorageKey key, long id, int offset) throws IOException {
+    try {
+      Meta meta = storage.loadMeta(key);
+      return meta.getSegment() != null && meta.getSegment() == id && meta.getSegmentOffset() == offset ? meta : null;
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Save the new segment, point the metadata at it and delete the old segments.
+   * @return number of deleted segments
+   */
+  private int move(Segment segment, List<Long> moved, Set<Long> written) throws IOException {
+    if (!segment.files.isEmpty()) {
+      long[] oldIds = segment.files.stream().mapToLong(file -> file.segment).toArray();
+      int[] oldOffsets = segment.files.stream().mapToInt(file -> file.offset).toArray();
+      save(segment);
+      written.add(segment.id);
+      for (int i = 0; i < oldOffsets.length; i++) {
+        File file = segment.files.get(i);
+        Meta meta = loadLiveMeta(file.key, oldIds[i], oldOffsets[i]);
+        if (meta == null) {
+          continue; // changed since the check
+        }
+        storage.replaceMeta(file.key, meta.toBuilder().segment(segment.id).segmentOffset(file.offset).build());
+      }
+    }
+    for (long id : moved) {
+      storage.deleteByte(getKey(id));
+    }
+    int deleted = moved.size();
+    moved.clear();
+    return deleted;
+  }
+
+}
@@ -22,7 +22,12 @@ import java.io.OutputStream;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.NoSuchFileException;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public interface Storage {
   boolean exists(Path path);
@@ -34,6 +39,82 @@ public interface Storage {
   Path createFolder(Path path) throws IOException;
   long size(Path path) throws IOException; // unspecified for folder
 
+  /**
+   * All attributes at once, implementations load the metadata only once.
+   * @throws NoSuchFileException if not exists
+   */
+  default Attributes getAttributes(Path path) throws IOException {
+    if (!exists(path)) {
+      throw new NoSuchFileException(path.toString());
+    }
+    boolean folder = isFolder(path);
+    return new Attributes(path, folder, folder ? 0L : size(path), getLastModifiedInstant(path));
+  }
+
+  /**
+   * Folder content with attributes, implementations load them in the same call as the list.
+   */
+  default List<Attributes> listAttributes(Path path) throws IOException {
+    List<Attributes> list = new ArrayList<>();
+    for (Path file : listFiles(path)) {
+      try {
+        list.add(getAttributes(file));
+      } catch (NoSuchFileException e) {
+        // deleted after list, skip
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Lazy folder content, for big folders. The stream must be closed.
+   */
+  default Stream<Attributes> streamAttributes(Path path) throws IOException {
+    return listAttributes(path).stream();
+  }
+
+  /**
+   * Size and number of entries under the folder, at any depth.
+   * Default implementation walks the tree, implementations keep the numbers with the folder.
+   */
+  default Usage getUsage(Path path) throws IOException {
+    long bytes = 0;
+    long entries = 0;
+    for (Attributes attributes : listAttributes(path)) {
+      entries++;
+      if (attributes.isFolder()) {
+        Usage usage = getUsage(attributes.getPath());
+        bytes += usage.getBytes();
+        entries += usage.getEntries();
+      } else {
+        bytes += attributes.getSize();
+      }
+    }
+    return new Usage(bytes, entries);
+  }
+
+  /**
+   * Files and folders under the folder, at any depth, with names matching the glob. Case insensitive,
+   * * is any text and ? is any character. Default implementation walks the tree.
+   */
+  default List<Path> find(Path folder, String glob, int limit) throws IOException {
+    Pattern pattern = NameIndex.pattern(glob);
+    List<Path> found = new ArrayList<>();
+    Deque<Path> folders = new ArrayDeque<>();
+    folders.add(folder);
+    while (!folders.isEmpty() && found.size() < limit) {
+      for (Attributes attributes : listAttributes(folders.removeFirst())) {
+        if (found.size() < limit && pattern.matcher(attributes.getPath().getFileName()).matches()) {
+          found.add(attributes.getPath());
+        }
+        if (attributes.isFolder()) {
+          folders.add(attributes.getPath());
+        }
+      }
+    }
+    return found;
+  }
+
   /**
    * Delete file or folder
    * @throws NoSuchFileException
@@ -42,5 +123,30 @@ public interface Storage {
    */
   void delete(Path path) throws IOException;
   InputStream newInputStream(Path path) throws IOException;
+
+  /**
+   * Stream positioned at offset, for resumed and segmented downloads.
+   * Default implementation reads and discards the bytes before offset.
+   */
+  default InputStream newInputStream(Path path, long offset) throws IOException {
+    InputStream stream = newInputStream(path);
+    for (long n = offset; n > 0; ) {
+      long skipped = stream.skip(n);
+      if (skipped <= 0) {
+        break; // end of file
+      }
+      n -= skipped;
+    }
+    return stream;
+  }
+
   OutputStream newOutputStream(Path path) throws IOException;
+
+  /**
+   * Resume at offset or append if offset is the file size. The file is truncated to offset first.
+   */
+  default OutputStream newOutputStream(Path path, long offset) throws IOException {
+    if (offset > 0) throw new IllegalStateException("stream with offset is not supported");
+    return newOutputStream(path);
+  }
 }
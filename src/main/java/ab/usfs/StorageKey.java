@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Record key, the partition key pk and the sort key sk. Keys of one partition share the partition
+ * and its hash, so backends can group records by {@link #getPartition()} without copies.
+ * The arrays are not copied and must not be changed.
+ */
+public final class StorageKey {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  @Getter
+  private final byte[] pk;
+  @Getter
+  private final byte[] sk;
+  @Getter
+  private final StorageKey partition; // this for the partition itself
+  private final int hash;
+  private byte[] id; // lazy, racy single-check like String.hashCode
+
+  private StorageKey(byte[] pk) {
+    this.pk = pk;
+    this.sk = EMPTY;
+    this.partition = this;
+    this.hash = Arrays.hashCode(pk);
+  }
+
+  private StorageKey(StorageKey partition, byte[] sk) {
+    this.pk = partition.pk;
+    this.sk = sk;
+    this.partition = partition;
+    this.hash = 31 * partition.hash + Arrays.hashCode(sk);
+  }
+
+  public static StorageKey of(byte[] pk) {
+    return new StorageKey(pk);
+  }
+
+  public static StorageKey of(byte[] pk, byte[] sk) {
+    return new StorageKey(pk).withSk(sk);
+  }
+
+  /**
+   * Key of the record in this partition.
+   */
+  public StorageKey withSk(byte[] sk) {
+    return new StorageKey(partition, sk);
+  }
+
+  /**
+   * pk and sk in one array, for backends with a single key. Computed once per key.
+   */
+  public byte[] getId() {
+    byte[] b = id;
+    if (b == null) {
+      b = Arrays.copyOf(pk, pk.length + sk.length);
+      System.arraycopy(sk, 0, b, pk.length, sk.length);
+      id = b;
+    }
+    return b;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof StorageKey)) {
+      return false;
+    }
+    StorageKey key = (StorageKey) o;
+    return hash == key.hash && Arrays.equals(sk, key.sk) && (pk == key.pk || Arrays.equals(pk, key.pk));
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder stringBuilder = new StringBuilder(2 * (pk.length + sk.length) + 1);
+    for (byte b : pk) {
+      stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    stringBuilder.append('/');
+    for (byte b : sk) {
+      stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return stringBuilder.toString();
+  }
+}
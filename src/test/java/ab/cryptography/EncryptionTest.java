@@ -20,7 +20,14 @@ import ab.cryptography.Encryption;
 import org.junit.Test;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -55,4 +62,41 @@ public class EncryptionTest {
 
     assertEquals("fe92a677656fd0167381483f78477fd7", toHexString(new Encryption(new byte[0]).encrypt(new byte[0])));
   }
+
+  @Test
+  public void concurrentThreads() throws Exception {
+    Encryption encryption = new Encryption("test".getBytes());
+    byte[][] inputs = new byte[64][];
+    byte[][] expected = new byte[inputs.length][];
+    Random random = new Random(0);
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = new byte[random.nextInt(100_000)];
+      random.nextBytes(inputs[i]);
+      expected[i] = encryption.encrypt(inputs[i]);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (int t = 0; t < 16; t++) {
+        int seed = t;
+        futures.add(executor.submit(() -> {
+          Random order = new Random(seed);
+          for (int n = 0; n < 500; n++) {
+            int i = order.nextInt(inputs.length);
+            byte[] encrypted = n % 2 == 0 ? encryption.encrypt(inputs[i])
+                : encryption.encrypt(inputs[i], 0, inputs[i].length);
+            if (!Arrays.equals(expected[i], encrypted) || !Arrays.equals(inputs[i], encryption.decrypt(encrypted))) {
+              return false;
+            }
+          }
+          return true;
+        }));
+      }
+      for (Future<Boolean> future : futures) {
+        assertTrue(future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.ftpserver;
+
+import ab.usfs.Concept;
+import ab.usfs.Memory;
+import ab.usfs.Path;
+import ab.usfs.Storage;
+import ab.usfs.StorageKey;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FileTest {
+
+  @Test
+  public void listedFilesWithoutLoads() throws IOException {
+    AtomicInteger loads = new AtomicInteger();
+    Storage storage = new Memory(new HashMap<>(), Concept.USFS.withPassword("test")) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        loads.incrementAndGet();
+        return super.load(key);
+      }
+    };
+    storage.createFolder(new Path("/folder"));
+    for (int i = 0; i < 10; i++) {
+      try (OutputStream stream = storage.newOutputStream(new Path("/folder/file" + i))) {
+        stream.write(new byte[i]);
+      }
+    }
+    storage.createFolder(new Path("/folder/sub"));
+    loads.set(0);
+    List<? extends FtpFile> files = new File("/folder", storage).listFiles();
+    assertEquals(11, files.size());
+    for (FtpFile file : files) {
+      assertTrue(file.doesExist());
+      assertEquals(file.getName().equals("sub"), file.isDirectory());
+      assertEquals(!file.isDirectory(), file.isFile());
+      assertEquals(file.isDirectory() ? 0 : Integer.parseInt(file.getName().substring(4)), file.getSize());
+      assertTrue(file.getLastModified() > 0);
+    }
+    assertEquals(0, loads.get());
+  }
+
+}
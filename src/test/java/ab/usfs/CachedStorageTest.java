@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CachedStorageTest {
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  private Memory newMemory() throws IOException {
+    return new Memory(new HashMap<>(), Concept.USFS.withPassword("test")) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        loads.incrementAndGet();
+        return super.load(key);
+      }
+    };
+  }
+
+  @Test
+  public void listingLoadsNoEntries() throws IOException {
+    CachedStorage storage = new CachedStorage(newMemory(), 1000, Duration.ofMinutes(1));
+    Path folder = storage.createFolder(new Path("/folder"));
+    for (int i = 0; i < 100; i++) {
+      try (OutputStream stream = storage.newOutputStream(new Path("/folder/file" + i))) {
+        stream.write(new byte[i]);
+      }
+    }
+    loads.set(0);
+    for (Path path : storage.listFiles(folder)) { // org.apache.ftpserver.command.impl.listing.LISTFileFormater
+      assertTrue(storage.exists(path));
+      assertFalse(storage.isFolder(path));
+      assertTrue(storage.isFile(path));
+      assertEquals(Integer.parseInt(path.getFileName().substring(4)), storage.size(path));
+      assertNotNull(storage.getLastModifiedInstant(path));
+    }
+    assertEquals(0, loads.get()); // attributes are in the list
+    assertEquals(0, storage.getMisses());
+    assertEquals(500, storage.getHits());
+  }
+
+  @Test
+  public void ownWritesInvalidate() throws IOException {
+    CachedStorage storage = new CachedStorage(newMemory(), 1000, Duration.ofMinutes(1));
+    Path path = new Path("/file");
+    assertFalse(storage.exists(path));
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(new byte[10]);
+    }
+    assertTrue(storage.isFile(path));
+    assertEquals(10, storage.size(path));
+    try (OutputStream stream = storage.newOutputStream(path, 10)) {
+      stream.write(new byte[5]);
+    }
+    assertEquals(15, storage.size(path));
+    Instant instant = Instant.parse("2020-01-01T00:00:00Z");
+    storage.setLastModifiedInstant(path, instant);
+    assertEquals(instant, storage.getLastModifiedInstant(path));
+    storage.delete(path);
+    assertFalse(storage.exists(path));
+    storage.createFolder(path);
+    assertTrue(storage.isFolder(path));
+  }
+
+  @Test
+  public void missingNamesInListedFolder() throws IOException {
+    CachedStorage storage = new CachedStorage(newMemory(), 1000, Duration.ofMinutes(1));
+    Path folder = storage.createFolder(new Path("/folder"));
+    for (int i = 0; i < 100; i++) {
+      storage.createFolder(new Path("/folder/sub" + i));
+    }
+    storage.listFiles(folder);
+    loads.set(0);
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(storage.exists(new Path("/folder/file" + i)));
+    }
+    assertTrue(loads.get() < 50); // false positives
+    assertEquals(1000 - loads.get(), storage.getFiltered());
+    try (OutputStream stream = storage.newOutputStream(new Path("/folder/file1"))) {
+      stream.write(1);
+    }
+    storage.createFolder(new Path("/folder/file2"));
+    assertTrue(storage.isFile(new Path("/folder/file1")));
+    assertTrue(storage.isFolder(new Path("/folder/file2")));
+    assertTrue(storage.isFolder(new Path("/folder/sub99")));
+    assertFalse(storage.exists(new Path("/other/file1"))); // folder is not listed
+  }
+
+  @Test
+  public void lingeringPackedFile() throws IOException {
+    Memory memory = newMemory();
+    memory.setInlineSize(10);
+    memory.setPackSize(1000);
+    memory.setPackLinger(60_000); // saved on flush
+    CachedStorage storage = new CachedStorage(memory, 1000, Duration.ofMinutes(1));
+    Path folder = storage.createFolder(new Path("/folder"));
+    Path path = new Path("/folder/file");
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(new byte[100]);
+    }
+    assertFalse(storage.exists(path)); // the segment is not saved yet
+    storage.listFiles(folder);
+    memory.flushSegments();
+    assertTrue(storage.isFile(path)); // neither the miss nor the name filter is cached
+    assertEquals(100, storage.size(path));
+  }
+
+  @Test
+  public void boundedAndExpiring() throws IOException {
+    Memory memory = newMemory();
+    CachedStorage storage = new CachedStorage(memory, 2, Duration.ofMinutes(1));
+    Path a = storage.createFolder(new Path("/a"));
+    Path b = storage.createFolder(new Path("/b"));
+    Path c = storage.createFolder(new Path("/c"));
+    loads.set(0);
+    storage.exists(a);
+    storage.exists(b);
+    storage.exists(a);
+    storage.exists(c); // b is evicted
+    storage.exists(a);
+    storage.exists(b);
+    assertEquals(4, loads.get());
+
+    storage = new CachedStorage(memory, 2, Duration.ZERO);
+    storage.listFiles(new Path("/"));
+    loads.set(0);
+    storage.exists(a);
+    storage.exists(a);
+    storage.exists(new Path("/d"));
+    assertEquals(3, loads.get());
+  }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkLayoutTest {
+
+  @Test
+  public void offsetsMatchSizes() {
+    for (ChunkLayout layout : new ChunkLayout[]{ChunkLayout.fixed(1000), new ChunkLayout(64, 1024),
+        new ChunkLayout(64, 1000), new ChunkLayout(1, Integer.MAX_VALUE)}) {
+      long offset = 0;
+      for (long chunk = 0; chunk < 40; chunk++) {
+        assertEquals(layout + " " + chunk, offset, layout.offset(chunk));
+        assertEquals(chunk, layout.chunk(offset));
+        assertEquals(chunk, layout.chunk(offset + layout.size(chunk) - 1));
+        assertEquals(chunk + 1, layout.count(offset + 1));
+        offset += layout.size(chunk);
+      }
+    }
+  }
+
+  @Test
+  public void geometricGrowth() {
+    ChunkLayout layout = new ChunkLayout(64, 1000);
+    assertEquals(64, layout.size(0));
+    assertEquals(512, layout.size(3));
+    assertEquals(1000, layout.size(4));
+    assertEquals(1000, layout.size(1_000_000));
+    assertEquals(0, layout.count(0));
+    assertEquals(1, layout.count(64));
+    assertEquals(2, layout.count(65));
+    assertEquals(new ChunkLayout(256, 1000), layout.withSizeHint(200));
+    assertEquals(new ChunkLayout(1000, 1000), layout.withSizeHint(1L << 40));
+    assertEquals(layout, layout.withSizeHint(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void maxSmallerThanFirst() {
+    new ChunkLayout(1024, 1000);
+  }
+
+}
@@ -16,12 +16,16 @@
 
 package ab.usfs;
 
+import ab.cryptography.Digest;
+import ab.cryptography.Encryption;
 import org.junit.Test;
 
 import java.security.Security;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.UUID;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class ConceptTest {
@@ -76,6 +80,52 @@ public class ConceptTest {
         Concept.USFS.withPassword(password).digestStr(fileName));
   }
 
+  @Test
+  public void digestMemo() {
+    String folder = "/" + String.join("/", UUID.randomUUID().toString(), UUID.randomUUID().toString()) + "/";
+    Concept concept = Concept.USFS.withPassword("test");
+    Encryption encryption = new Encryption("test".getBytes(Concept.CHARSET));
+    for (String s : new String[]{"/", "/a", folder, folder + "a", folder + "b", folder + "a"}) {
+      byte[] expected = Arrays.copyOf(encryption.encrypt(Digest.SHA256.digest(s.getBytes(Concept.CHARSET))), 2);
+      byte[] digest = concept.digest(s);
+      assertArrayEquals(s, expected, digest);
+      digest[0]++;
+      assertArrayEquals(s, expected, concept.digest(s));
+      assertArrayEquals(s, Digest.SHA256.digest(s.getBytes(Concept.CHARSET)), Concept.SHA256.digest(s));
+    }
+  }
+
+  @Test
+  public void radixStrAllShort() {
+    for (int i = 0; i < 1 << 16; i++) {
+      byte[] bytes = {(byte) (i >> 8), (byte) i};
+      assertEquals(Concept.USFS.radixStrBigInteger(bytes), Concept.USFS.radixStr(bytes));
+    }
+  }
+
+  @Test
+  public void radixStrEquivalence() {
+    Random random = new Random(0);
+    for (int radixSize = 1; radixSize <= 5; radixSize++) {
+      for (int digestSize : new int[]{8, 12, 16, 100, 128, 160, 256}) {
+        Concept concept = Concept.SHA256.withBitSize(digestSize, radixSize);
+        for (int length = 1; length <= 33; length++) {
+          for (int fill : new int[]{0x00, 0x01, 0x7F, 0x80, 0xFF, -1}) {
+            byte[] bytes = new byte[length];
+            if (fill < 0) {
+              random.nextBytes(bytes);
+            } else {
+              Arrays.fill(bytes, (byte) fill);
+            }
+            assertEquals(concept.radixStrBigInteger(bytes), concept.radixStr(bytes));
+            bytes[0] = 1;
+            assertEquals(concept.radixStrBigInteger(bytes), concept.radixStr(bytes));
+          }
+        }
+      }
+    }
+  }
+
   @Test
   public void digestLong() {
     assertEquals("170017", Concept.USFS.radixStr(Concept.USFS.digest(0xF00F)));
@@ -0,0 +1,640 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.NoSuchFileException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GridStreamTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private FileSystem newStorage(int chunkSize, int pipelineDepth, int readAheadBytes) throws IOException {
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS.withPassword("test"));
+    storage.setChunkSize(chunkSize, chunkSize);
+    storage.DEFAULT_PIPELINE_DEPTH = pipelineDepth;
+    storage.DEFAULT_READ_AHEAD_BYTES = readAheadBytes;
+    return storage;
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream stream) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+      result.write(buffer, 0, n);
+    }
+    return result.toByteArray();
+  }
+
+  @Test
+  public void pipelinedWriteRead() throws IOException {
+    writeRead(newStorage(1024, 0, 0));
+    writeRead(newStorage(1024, 3, 0));
+    writeRead(newStorage(1024, 3, 8 * 1024));
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS); // no encryption
+    storage.setChunkSize(1024, 1024);
+    writeRead(storage);
+  }
+
+  private void writeRead(Storage storage) throws IOException {
+    for (int size : new int[]{0, 1, 1023, 1024, 1025, 100_000}) {
+      Path path = new Path("/file" + size);
+      byte[] content = randomBytes(size);
+      try (OutputStream stream = storage.newOutputStream(path)) {
+        int half = size / 2;
+        for (int i = 0; i < half; i++) {
+          stream.write(content[i]);
+        }
+        stream.write(content, half, size - half);
+      }
+      assertTrue(storage.isFile(path));
+      assertEquals(size, storage.size(path));
+      try (InputStream stream = storage.newInputStream(path)) {
+        assertArrayEquals(content, readAll(stream));
+      }
+      storage.delete(path);
+      assertFalse(storage.exists(path));
+    }
+  }
+
+  @Test
+  public void growingChunks() throws IOException {
+    FileSystem storage = newStorage(1024, 3, 8 * 1024);
+    storage.setChunkSize(100, 1000);
+    writeRead(storage);
+    Path path = new Path("/file");
+    byte[] content = randomBytes(10_000);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content, 0, 5000);
+    }
+    Meta meta = storage.loadMeta(storage.getKey(path));
+    assertEquals(new ChunkLayout(100, 1000), storage.getChunkLayout(meta));
+    assertEquals(8, storage.getChunkCount(meta)); // 100 200 400 800 1000 1000 1000 500
+    storage.setChunkSize(1024, 1024); // existing file keeps its layout
+    try (OutputStream stream = storage.newOutputStream(path, 1234)) {
+      stream.write(content, 1234, content.length - 1234);
+    }
+    for (int offset : new int[]{0, 99, 100, 700, 1499, 1500, 9999}) {
+      try (InputStream stream = storage.newInputStream(path, offset)) {
+        assertArrayEquals(Arrays.copyOfRange(content, offset, content.length), readAll(stream));
+      }
+    }
+    storage.delete(path);
+
+    storage.setChunkSize(100, 1000);
+    storage.setInlineSize(0);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      ((AbstractStorage.GridOutputStream) stream).setSizeHint(300);
+      stream.write(content, 0, 300);
+    }
+    meta = storage.loadMeta(storage.getKey(path));
+    assertEquals(new ChunkLayout(400, 1000), storage.getChunkLayout(meta));
+    assertEquals(1, storage.getChunkCount(meta));
+  }
+
+  @Test
+  public void inlineSmallFiles() throws IOException {
+    AtomicInteger calls = new AtomicInteger();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS.withPassword("test")) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        calls.incrementAndGet();
+        return super.load(key);
+      }
+
+      @Override
+      public void save(StorageKey key, byte[] b) throws IOException {
+        calls.incrementAndGet();
+        super.save(key, b);
+      }
+    };
+    storage.setChunkSize(1024, 1024);
+    storage.setInlineSize(1024);
+    writeRead(storage);
+    Path path = new Path("/file");
+    byte[] content = randomBytes(3000);
+    calls.set(0);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content, 0, 200);
+    }
+    assertEquals(1, calls.getAndSet(0));
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(Arrays.copyOf(content, 200), readAll(stream));
+    }
+    assertEquals(1, calls.getAndSet(0));
+    try (InputStream stream = storage.newInputStream(path, 150)) {
+      assertArrayEquals(Arrays.copyOfRange(content, 150, 200), readAll(stream));
+    }
+    try (OutputStream stream = storage.newOutputStream(path, 100)) {
+      stream.write(content, 100, 900); // inline again
+    }
+    Meta meta = storage.loadMeta(storage.getKey(path));
+    assertEquals(0, storage.getChunkCount(meta));
+    assertEquals(1000, meta.getContent().length);
+    try (OutputStream stream = storage.newOutputStream(path, 1000)) {
+      stream.write(content, 1000, content.length - 1000); // inline content goes to the first chunk
+    }
+    meta = storage.loadMeta(storage.getKey(path));
+    assertNull(meta.getContent());
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(content, readAll(stream));
+    }
+    try (OutputStream stream = storage.newOutputStream(path, 10)) {
+      stream.write(content, 10, 10); // chunks to metadata
+    }
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(Arrays.copyOf(content, 20), readAll(stream));
+    }
+    storage.delete(path);
+    assertTrue(storage.list(StorageKey.of(storage.getFpk(path))).isEmpty());
+  }
+
+  @Test
+  public void failedChunkFailsClose() throws IOException {
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS) {
+      @Override
+      public void save(StorageKey key, byte[] b) throws IOException {
+        if (Arrays.equals(key.getSk(), concept.digest(2))) {
+          throw new IOException("chunk 2");
+        }
+        super.save(key, b);
+      }
+    };
+    storage.setChunkSize(1024, 1024);
+    storage.DEFAULT_PIPELINE_DEPTH = 8;
+    Path path = new Path("/file");
+    OutputStream stream = storage.newOutputStream(path);
+    stream.write(randomBytes(5000));
+    try {
+      stream.close();
+      fail();
+    } catch (IOException e) {
+      assertEquals("chunk 2", e.getMessage());
+    }
+    assertFalse(storage.exists(path)); // metadata is not written
+  }
+
+  @Test
+  public void failedChunkFailsWrite() throws IOException {
+    for (int pipelineDepth : new int[]{0, 2}) {
+      FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS) {
+        @Override
+        public void save(StorageKey key, byte[] b) throws IOException {
+          if (Arrays.equals(key.getSk(), concept.digest(2))) {
+            throw new IOException("chunk 2");
+          }
+          super.save(key, b);
+        }
+      };
+      storage.setChunkSize(1024, 1024);
+      storage.DEFAULT_PIPELINE_DEPTH = pipelineDepth;
+      Path path = new Path("/file");
+      byte[] content = randomBytes(1024);
+      OutputStream stream = storage.newOutputStream(path);
+      try {
+        for (int i = 0; i < 10; i++) {
+          stream.write(content);
+        }
+        fail();
+      } catch (IOException e) {
+        // the failure surfaces in write, the ftp server closes the stream anyway
+      }
+      try {
+        storage.setLastModifiedInstant(path, Instant.now());
+        fail();
+      } catch (NoSuchFileException e) {
+        // not held by the failed stream
+      }
+      try {
+        stream.write(content);
+        fail();
+      } catch (IOException e) {
+        assertEquals("chunk 2", e.getCause().getMessage());
+      }
+      try {
+        stream.close();
+        fail();
+      } catch (IOException e) {
+        assertEquals("chunk 2", e.getCause().getMessage());
+      }
+      assertFalse(storage.exists(path)); // metadata is not written
+    }
+  }
+
+  @Test
+  public void failedResumeKeepsFile() throws IOException {
+    byte[] rewrittenChunk3 = new byte[3];
+    rewrittenChunk3[0] = 1; // generation of the resume
+    System.arraycopy(Concept.USFS.digest(3), 0, rewrittenChunk3, 1, 2);
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS) {
+      @Override
+      public void save(StorageKey key, byte[] b) throws IOException {
+        if (Arrays.equals(key.getSk(), rewrittenChunk3)) {
+          throw new IOException("chunk 3");
+        }
+        super.save(key, b);
+      }
+    };
+    storage.setChunkSize(1024, 1024);
+    Path path = new Path("/file");
+    byte[] content = randomBytes(10_000);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content);
+    }
+    for (int offset : new int[]{2000, 0}) { // resume, overwrite
+      OutputStream stream = storage.newOutputStream(path, offset);
+      try {
+        stream.write(randomBytes(4000)); // other bytes, chunks 1 and 2 are rewritten before the failure
+        stream.close();
+        fail();
+      } catch (IOException e) {
+        // the old metadata and all the chunks of the old file stay
+      }
+      assertEquals(content.length, storage.size(path));
+      try (InputStream input = storage.newInputStream(path)) {
+        assertArrayEquals(content, readAll(input));
+      }
+    }
+  }
+
+  @Test
+  public void overwriteExistingFile() throws IOException {
+    FileSystem storage = newStorage(1024, 2, 0); // save fails if the record exists, like the backends
+    storage.setInlineSize(100);
+    storage.setPackSize(1000);
+    Path path = new Path("/file");
+    StorageKey chunks = StorageKey.of(storage.getFpk(path));
+    for (int size : new int[]{5000, 3000, 50, 7000, 500, 500, 2500}) { // chunked, inline and packed
+      byte[] content = randomBytes(size);
+      content[0] = (byte) size; // differs from the last write of the same size
+      try (OutputStream stream = storage.newOutputStream(path)) {
+        stream.write(content);
+      }
+      assertEquals(size, storage.size(path));
+      try (InputStream stream = storage.newInputStream(path)) {
+        assertArrayEquals(content, readAll(stream));
+      }
+      assertEquals(size > 1000 ? (size + 1023) / 1024 : 0, storage.list(chunks).size()); // old chunks deleted
+    }
+    assertEquals(1, storage.listFiles(new Path("/")).size());
+  }
+
+  @Test
+  public void missingChunkFailsRead() throws IOException {
+    FileSystem storage = newStorage(1024, 0, 0);
+    Path path = new Path("/file");
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(randomBytes(5000));
+    }
+    storage.deleteByte(StorageKey.of(storage.getFpk(path), Concept.USFS.digest(2)));
+    try (InputStream stream = storage.newInputStream(path)) {
+      readAll(stream);
+      fail();
+    } catch (NoSuchFileException e) {
+      // not the end of file, the manifest has 5 chunks
+    }
+  }
+
+  @Test
+  public void seekAndSkip() throws IOException {
+    for (Storage storage : new Storage[]{newStorage(1024, 0, 0), newStorage(1024, 0, 8 * 1024)}) {
+      Path path = new Path("/file");
+      byte[] content = randomBytes(10_000);
+      try (OutputStream stream = storage.newOutputStream(path)) {
+        stream.write(content);
+      }
+      for (int offset : new int[]{0, 1, 1023, 1024, 1025, 5000, 9999, 10_000, 12_000}) {
+        try (InputStream stream = storage.newInputStream(path, offset)) {
+          assertArrayEquals(Arrays.copyOfRange(content, Math.min(offset, content.length), content.length),
+              readAll(stream));
+        }
+      }
+      try (InputStream stream = storage.newInputStream(path)) {
+        assertEquals(content[0], (byte) stream.read());
+        assertEquals(3000, stream.skip(3000));
+        assertEquals(content[3001], (byte) stream.read());
+        assertEquals(10, stream.skip(10)); // same chunk
+        assertEquals(content[3012], (byte) stream.read());
+        ((AbstractStorage.GridInputStream) stream).seek(1);
+        assertEquals(content[1], (byte) stream.read());
+      }
+      storage.delete(path);
+    }
+  }
+
+  @Test
+  public void resumeAndAppend() throws IOException {
+    Storage storage = newStorage(1024, 3, 0);
+    Path path = new Path("/file");
+    byte[] content = randomBytes(10_000);
+    for (int offset : new int[]{1, 1024, 1500, 3000, 4095, 4096}) {
+      try (OutputStream stream = storage.newOutputStream(path)) {
+        stream.write(content, 0, 4096); // interrupted upload
+      }
+      try (OutputStream stream = storage.newOutputStream(path, offset)) {
+        stream.write(content, offset, content.length - offset);
+      }
+      assertEquals(content.length, storage.size(path));
+      try (InputStream stream = storage.newInputStream(path)) {
+        assertArrayEquals(content, readAll(stream));
+      }
+      storage.delete(path);
+    }
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content, 0, 100);
+    }
+    try (OutputStream stream = storage.newOutputStream(path, 50)) {
+      stream.write(content, 50, 10); // truncated
+    }
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(Arrays.copyOf(content, 60), readAll(stream));
+    }
+  }
+
+  @Test
+  public void lastModifiedWithoutDelete() throws IOException {
+    AtomicInteger writes = new AtomicInteger();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS) {
+      @Override
+      public void replace(StorageKey key, byte[] b) throws IOException {
+        writes.incrementAndGet();
+        super.replace(key, b);
+      }
+
+      @Override
+      public void delete(StorageKey key) throws IOException {
+        fail("metadata is replaced");
+      }
+    };
+    Path path = new Path("/file");
+    Instant instant = Instant.parse("2018-01-02T03:04:05.678Z");
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(randomBytes(100));
+      storage.setLastModifiedInstant(path, instant); // pending until close
+    }
+    assertEquals(0, writes.get());
+    assertEquals(instant, storage.getLastModifiedInstant(path));
+    storage.setLastModifiedInstant(path, instant.plusSeconds(1));
+    assertEquals(1, writes.get());
+    assertEquals(instant.plusSeconds(1), storage.getLastModifiedInstant(path));
+    try (OutputStream stream = storage.newOutputStream(path, 100)) {
+      stream.write(randomBytes(10));
+    }
+    assertEquals(2, writes.get());
+    assertEquals(110, storage.size(path));
+  }
+
+  @Test
+  public void lastModifiedDuringClose() throws IOException {
+    Path path = new Path("/file");
+    Instant instant = Instant.parse("2018-01-02T03:04:05.678Z");
+    AtomicBoolean chunks = new AtomicBoolean();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS) {
+      @Override
+      public void save(StorageKey key, byte[] b) throws IOException {
+        super.save(key, b);
+        if (chunks.get()) {
+          setLastModifiedInstant(path, instant); // MFMT while close saves the last chunk, before the metadata
+        }
+      }
+
+      @Override
+      public void save(StorageKey key, byte[] b, boolean folder) throws IOException {
+        chunks.set(false);
+        super.save(key, b, folder);
+        if (!folder) {
+          setLastModifiedInstant(path, instant.plusSeconds(1)); // MFMT after the metadata, before close returns
+        }
+      }
+    };
+    storage.setChunkSize(1024, 1024);
+    chunks.set(true);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(randomBytes(10_000));
+    }
+    assertEquals(instant.plusSeconds(1), storage.getLastModifiedInstant(path));
+  }
+
+  @Test
+  public void headWithoutLoad() throws IOException {
+    AtomicInteger loads = new AtomicInteger();
+    Map<String, Boolean> folders = new HashMap<>();
+    Memory storage = new Memory(new HashMap<>(), Concept.USFS.withPassword("test")) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        loads.incrementAndGet();
+        return super.load(key);
+      }
+
+      @Override
+      public void save(StorageKey key, byte[] b, boolean folder) throws IOException {
+        super.save(key, b);
+        folders.put(key.toString(), folder);
+      }
+
+      @Override
+      public Head head(StorageKey key) throws IOException {
+        Boolean folder = folders.get(key.toString());
+        return folder == null ? super.head(key) : folder ? Head.FOLDER : Head.FILE;
+      }
+    };
+    storage.createFolder(new Path("/folder"));
+    try (OutputStream stream = storage.newOutputStream(new Path("/folder/file"))) {
+      stream.write(randomBytes(10));
+    }
+    loads.set(0);
+    assertTrue(storage.isFolder(new Path("/folder")));
+    assertTrue(storage.isFile(new Path("/folder/file")));
+    assertFalse(storage.isFile(new Path("/folder")));
+    assertTrue(storage.exists(new Path("/folder/file")));
+    assertFalse(storage.exists(new Path("/folder/other")));
+    assertEquals(0, loads.get());
+    folders.clear(); // saved without the flag
+    assertTrue(storage.isFolder(new Path("/folder")));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void manifestWithoutProbes() throws IOException {
+    AtomicInteger missing = new AtomicInteger();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        try {
+          return super.load(key);
+        } catch (NoSuchFileException e) {
+          missing.incrementAndGet();
+          throw e;
+        }
+      }
+
+      @Override
+      public void delete(StorageKey key) throws IOException {
+        try {
+          super.delete(key);
+        } catch (NoSuchFileException e) {
+          missing.incrementAndGet();
+          throw e;
+        }
+      }
+    };
+    storage.setChunkSize(1024, 1024);
+    missing.set(0); // root folder check
+    Path path = new Path("/file");
+    byte[] content = randomBytes(3000);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content);
+    }
+    assertEquals(1, missing.getAndSet(0)); // no old file to overwrite
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(content, readAll(stream));
+    }
+    storage.delete(path);
+    assertEquals(0, missing.get());
+
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content);
+    }
+    missing.set(0);
+    Meta meta = storage.loadMeta(storage.getKey(path)).toBuilder()
+        .chunkCount(-1).build(); // saved before manifest
+    storage.DEFAULT_READ_AHEAD_BYTES = 0; // one probe, read ahead can make more
+    storage.deleteByte(storage.getKey(path));
+    storage.saveMeta(storage.getKey(path), meta);
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(content, readAll(stream));
+    }
+    storage.delete(path);
+    assertEquals(2, missing.get()); // read and delete probes
+    assertFalse(storage.exists(path));
+  }
+
+  @Test
+  public void memoryBudget() throws IOException {
+    BufferPool bufferPool = new BufferPool(4096, 4096);
+    AtomicInteger maxUsed = new AtomicInteger();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS.withPassword("")) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        maxUsed.accumulateAndGet((int) bufferPool.getUsedBytes(), Math::max);
+        return super.load(key);
+      }
+
+      @Override
+      public void save(StorageKey key, byte[] b) throws IOException {
+        maxUsed.accumulateAndGet((int) bufferPool.getUsedBytes(), Math::max);
+        super.save(key, b);
+      }
+    };
+    storage.setChunkSize(1024, 1024);
+    storage.DEFAULT_PIPELINE_DEPTH = 16;
+    storage.DEFAULT_READ_AHEAD_BYTES = 16 * 1024;
+    storage.bufferPool = bufferPool;
+    Path path = new Path("/file");
+    byte[] content = randomBytes(100_000);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content, 0, 50_000);
+      for (int i = 50_000; i < content.length; i++) {
+        stream.write(content[i]);
+      }
+    }
+    assertEquals(0, bufferPool.getUsedBytes());
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(content, readAll(stream));
+    }
+    assertEquals(0, bufferPool.getUsedBytes());
+    try (InputStream stream = storage.newInputStream(path, 33_333)) {
+      assertEquals(content[33_333], (byte) stream.read());
+    }
+    assertEquals(0, bufferPool.getUsedBytes());
+    assertTrue(maxUsed.get() <= 4096);
+  }
+
+  @Test
+  public void readAheadGrowingChunks() throws IOException {
+    BufferPool bufferPool = new BufferPool(1 << 30, 0);
+    AtomicInteger maxUsed = new AtomicInteger();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS.withPassword("")) {
+      @Override
+      public byte[] load(StorageKey key) throws IOException {
+        maxUsed.accumulateAndGet((int) bufferPool.getUsedBytes(), Math::max);
+        try {
+          Thread.sleep(2); // reader waits, read ahead grows
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return super.load(key);
+      }
+    };
+    storage.setChunkSize(1024, 16 * 1024);
+    storage.DEFAULT_READ_AHEAD_BYTES = 16 * 1024;
+    storage.bufferPool = bufferPool;
+    Path path = new Path("/file");
+    byte[] content = randomBytes(300_000);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content);
+    }
+    maxUsed.set(0);
+    try (InputStream stream = storage.newInputStream(path)) {
+      assertArrayEquals(content, readAll(stream));
+    }
+    assertEquals(0, bufferPool.getUsedBytes());
+    assertTrue(maxUsed.get() <= 2 * 16 * 1024); // read ahead and the current chunk
+  }
+
+  @Test
+  public void readAheadPartialRead() throws IOException {
+    Storage storage = newStorage(1024, 0, 16 * 1024);
+    Path path = new Path("/file");
+    byte[] content = randomBytes(50_000);
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(content);
+    }
+    try (InputStream stream = storage.newInputStream(path)) {
+      byte[] head = new byte[3000];
+      for (int i = 0; i < head.length; i++) {
+        head[i] = (byte) stream.read();
+      }
+      assertArrayEquals(Arrays.copyOf(content, head.length), head);
+    } // pending chunks are cancelled
+  }
+
+}
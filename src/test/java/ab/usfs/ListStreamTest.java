@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ListStreamTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void lazyBatches() throws IOException {
+    AtomicInteger records = new AtomicInteger();
+    AtomicBoolean closed = new AtomicBoolean();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.SHA256.withPassword("test")) {
+      @Override
+      public Stream<byte[]> listStream(StorageKey partition) throws IOException {
+        return super.listStream(partition).peek(b -> records.incrementAndGet()).onClose(() -> closed.set(true));
+      }
+    };
+    storage.DEFAULT_LIST_BATCH = 50;
+    Path folder = storage.createFolder(new Path("/folder"));
+    for (int i = 0; i < 500; i++) {
+      storage.createFolder(new Path("/folder/sub" + i));
+    }
+
+    Set<String> names = storage.listAttributes(folder).stream()
+        .map(attributes -> attributes.getPath().getFileName()).collect(Collectors.toSet());
+    assertEquals(500, names.size());
+    assertTrue(names.contains("sub499"));
+    assertTrue(closed.getAndSet(false));
+    assertEquals(500, storage.listFiles(folder).size());
+
+    records.set(0);
+    try (Stream<Attributes> stream = storage.streamAttributes(folder)) {
+      assertEquals(5, stream.limit(5).count());
+    }
+    assertEquals(50, records.get()); // one batch
+    assertTrue(closed.get());
+  }
+
+  @Test
+  public void replaceShortNames() throws IOException {
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS.withPassword("test"));
+    Path file = new Path("/file");
+    try (OutputStream stream = storage.newOutputStream(file)) {
+      stream.write(new byte[100]);
+    }
+    storage.setLastModifiedInstant(file, Instant.ofEpochMilli(1000)); // replace of the metadata
+    java.nio.file.Path record = storage.path(storage.getKey(file));
+    java.nio.file.Files.write(record.resolveSibling(record.getFileName() + ".new"), new byte[1]); // crash
+    try (Stream<java.nio.file.Path> names = java.nio.file.Files.list(record.getParent())) {
+      assertTrue(names.allMatch(name -> name.getFileName().toString().matches("[^.]{1,8}(\\.[^.]{1,3})?")));
+    }
+    assertEquals(Instant.ofEpochMilli(1000), storage.getLastModifiedInstant(file));
+    assertEquals(1, storage.listFiles(new Path("/")).size()); // not the left over
+    storage.setLastModifiedInstant(file, Instant.ofEpochMilli(2000));
+    assertEquals(Instant.ofEpochMilli(2000), storage.getLastModifiedInstant(file));
+  }
+
+  @Test
+  public void shardedFolder() throws IOException {
+    Set<String> partitions = ConcurrentHashMap.newKeySet();
+    AtomicInteger heads = new AtomicInteger();
+    Set<StorageKey> folderWrites = ConcurrentHashMap.newKeySet();
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.SHA256.withPassword("test")) {
+      @Override
+      public void save(StorageKey key, byte[] b, boolean folder) throws IOException {
+        partitions.add(Arrays.toString(key.getPk()));
+        super.save(key, b, folder);
+      }
+
+      @Override
+      public void replace(StorageKey key, byte[] b, boolean folder) throws IOException {
+        folderWrites.add(key);
+        super.replace(key, b, folder);
+      }
+
+      @Override
+      public void addUsage(StorageKey key, long bytes, long entries) throws IOException {
+        folderWrites.add(key);
+        super.addUsage(key, bytes, entries);
+      }
+
+      @Override
+      public Head head(StorageKey key) throws IOException {
+        heads.incrementAndGet();
+        return super.head(key);
+      }
+    };
+    storage.setShards(16);
+    storage.setUsage(true); // not kept with shards, child writes do not touch the folder record
+    partitions.clear(); // root
+    Path folder = storage.createFolder(new Path("/folder"));
+    for (int i = 0; i < 500; i++) {
+      storage.createFolder(new Path("/folder/sub" + i));
+    }
+    assertEquals(17, partitions.size()); // the folder and its 16 partitions
+    try (OutputStream stream = storage.newOutputStream(new Path("/folder/file"))) {
+      stream.write(new byte[100]);
+    }
+    storage.delete(new Path("/folder/file"));
+    assertTrue(folderWrites.isEmpty());
+
+    Set<String> names = storage.listAttributes(folder).stream()
+        .map(attributes -> attributes.getPath().getFileName()).collect(Collectors.toSet());
+    assertEquals(500, names.size());
+    assertEquals(500, storage.listFiles(folder).size());
+    heads.set(0);
+    assertTrue(storage.exists(new Path("/folder/sub123")));
+    assertFalse(storage.exists(new Path("/folder/sub500")));
+    assertEquals(2, heads.get());
+    assertEquals(new Usage(0, 501), storage.getUsage(new Path("/")));
+    for (int i = 0; i < 500; i++) {
+      storage.delete(new Path("/folder/sub" + i));
+    }
+    storage.delete(folder);
+    assertEquals(0, storage.listFiles(new Path("/")).size());
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MetaTest {
+
+  private static final Meta FILE = Meta.builder().fileName("report ä.txt").contentLength(1_234_567L)
+      .lastModified(Instant.parse("2018-01-02T03:04:05.678Z").toEpochMilli())
+      .chunkSize(65536).chunkSizeMax(4 << 20).chunkCount(5).build();
+
+  @Test
+  public void binaryRoundTrip() {
+    Meta folder = Meta.builder().folder(true).fileName("folder").lastModified(1L).build();
+    Meta inline = FILE.toBuilder().contentLength(3).chunkCount(0).content(new byte[]{1, 2, 3}).build();
+    Meta packed = FILE.toBuilder().contentLength(5000).chunkCount(0).segment(-42L).segmentOffset(123456).build();
+    Meta resumed = FILE.toBuilder().generations(new ChunkGenerations(new long[]{0, 0, 3, 1, 4, 2})).build();
+    for (Meta meta : new Meta[]{FILE, folder, inline, packed, resumed, Meta.builder().fileName("").build()}) {
+      byte[] b = meta.toBytes();
+      assertEquals(Meta.MAGIC, b[0]);
+      assertEquals(meta, Meta.parse(b));
+    }
+    assertEquals(-1, folder.getChunkCount());
+    assertEquals("2018-01-02T03:04:05.678Z", FILE.getLastModifiedInstant().toString());
+  }
+
+  @Test
+  public void readProperties() {
+    Meta seconds = FILE.toBuilder().lastModified(FILE.getLastModified() / 1000 * 1000).build(); // RFC 7231 has seconds
+    assertEquals(seconds, Meta.parse(seconds.toProperties()));
+    Meta resumed = seconds.toBuilder().generations(ChunkGenerations.INITIAL.rewrite(2).rewrite(1)).build();
+    assertEquals("0:0,1:2", resumed.getGenerations().toString()); // generation 1 has the old chunk 2
+    assertEquals(resumed, Meta.parse(resumed.toProperties()));
+    Meta legacy = Meta.parse(("#Mon Jan 01 00:00:00 UTC 2018\nIsFolder=false\nFileName=old\nContent-Length=10\n"
+        + "Last-Modified=Mon, 01 Jan 2018 00\\:00\\:00 GMT\n").getBytes(StandardCharsets.ISO_8859_1));
+    assertEquals("old", legacy.getFileName());
+    assertEquals(10, legacy.getContentLength());
+    assertEquals(0, legacy.getChunkSize());
+    assertEquals(-1, legacy.getChunkCount());
+    assertEquals(Instant.parse("2018-01-01T00:00:00Z"), legacy.getLastModifiedInstant());
+  }
+
+  @Test
+  public void smallerThanProperties() {
+    assertTrue(FILE.toBytes().length * 4 < FILE.toProperties().length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void truncated() {
+    byte[] b = FILE.toBytes();
+    Meta.parse(Arrays.copyOf(b, b.length - 1));
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class NameIndexTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void tokensOfGlob() {
+    assertEquals(new HashSet<>(Arrays.asList("report 2018.final.pdf", "report", "2018", "final", "pdf")),
+        NameIndex.tokens("Report 2018.final.PDF"));
+    assertEquals("pdf", NameIndex.token("*.PDF"));
+    assertEquals("final", NameIndex.token("report*.final.*"));
+    assertEquals("report.pdf", NameIndex.token("Report.pdf"));
+    assertNull(NameIndex.token("rep*"));
+    assertNull(NameIndex.token("*"));
+    assertTrue(NameIndex.pattern("*.pdf").matcher("Report.PDF").matches());
+    assertTrue(NameIndex.pattern("r?port[1].*").matcher("report[1].txt").matches());
+    assertFalse(NameIndex.pattern("*.pdf").matcher("report.pdf.txt").matches());
+  }
+
+  @Test
+  public void findWithIndex() throws IOException {
+    AtomicInteger lists = new AtomicInteger();
+    Memory storage = new Memory(new HashMap<>(), Concept.USFS.withPassword("test")) {
+      @Override
+      public Stream<byte[]> listStream(StorageKey partition) throws IOException {
+        lists.incrementAndGet();
+        return super.listStream(partition);
+      }
+    };
+    storage.setNameIndex(true);
+    for (String folder : new String[]{"/a", "/a/b", "/c"}) {
+      storage.createFolder(new Path(folder));
+      for (String name : new String[]{"Report.pdf", "notes.txt", "old report.pdf"}) {
+        try (OutputStream stream = storage.newOutputStream(new Path(folder + "/" + name))) {
+          stream.write(1);
+        }
+      }
+    }
+    lists.set(0);
+    assertEquals(6, storage.find(new Path("/"), "*.pdf", 100).size());
+    assertEquals(4, storage.find(new Path("/a"), "*REPORT*.pdf", 100).size());
+    assertEquals(Arrays.asList("/a/b/notes.txt"), names(storage.find(new Path("/a/b"), "notes.txt", 100)));
+    assertEquals(1, storage.find(new Path("/"), "b", 100).size());
+    assertEquals(4, lists.get()); // one query each
+
+    storage.delete(new Path("/a/b/notes.txt"));
+    assertEquals(2, storage.find(new Path("/"), "notes.txt", 100).size());
+    lists.set(0);
+    assertEquals(8, storage.find(new Path("/"), "*o*", 100).size()); // no whole word, walk
+    assertEquals(4, lists.get());
+    assertEquals(3, storage.find(new Path("/c"), "*o*", 100).size());
+    assertEquals(2, storage.find(new Path("/"), "*.pdf", 2).size());
+  }
+
+  @Test
+  public void indexShortNames() throws IOException {
+    java.io.File root = temporaryFolder.newFolder();
+    FileSystem storage = new FileSystem(root.getPath(), Concept.USFS.withPassword("test"));
+    storage.setNameIndex(true);
+    storage.createFolder(new Path("/folder"));
+    Path path = new Path("/folder/Report 2018.pdf");
+    try (OutputStream stream = storage.newOutputStream(path)) {
+      stream.write(1);
+    }
+    try (Stream<java.nio.file.Path> files = Files.walk(root.toPath())) {
+      assertTrue(files.skip(1).allMatch(file -> file.getFileName().toString().matches("[^.]{1,8}(\\.[^.]{1,3})?")));
+    }
+    assertEquals(Arrays.asList(path.toString()), names(storage.find(new Path("/"), "*.pdf", 100)));
+    storage.delete(path);
+    assertTrue(storage.find(new Path("/"), "*.pdf", 100).isEmpty());
+  }
+
+  private static List<String> names(List<Path> paths) {
+    return paths.stream().map(Path::toString).collect(Collectors.toList());
+  }
+
+}
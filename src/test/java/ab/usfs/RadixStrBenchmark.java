@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File name of a key as FileSystem makes it, the table encoder against BigInteger.
+ * mvn test-compile, then run main with the test classpath.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RadixStrBenchmark {
+
+  private final byte[] usfs = Concept.USFS.digest("/usr/local/bin/docker");
+  private final byte[] sha256 = Concept.SHA256.digest("/usr/local/bin/docker");
+
+  @Benchmark
+  public String usfsBigInteger() {
+    return Concept.USFS.radixStrBigInteger(usfs);
+  }
+
+  @Benchmark
+  public String usfsTable() {
+    return Concept.USFS.radixStr(usfs);
+  }
+
+  @Benchmark
+  public String sha256BigInteger() {
+    return Concept.SHA256.radixStrBigInteger(sha256);
+  }
+
+  @Benchmark
+  public String sha256Table() {
+    return Concept.SHA256.radixStr(sha256);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(RadixStrBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
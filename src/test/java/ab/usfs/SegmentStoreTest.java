@@ -0,0 +1,178 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SegmentStoreTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static byte[] content(int n) {
+    byte[] bytes = new byte[1000 + n * 97 % 7000];
+    new Random(n).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] readAll(Storage storage, Path path) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (InputStream stream = storage.newInputStream(path)) {
+      byte[] buffer = new byte[1000];
+      for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+        result.write(buffer, 0, n);
+      }
+    }
+    return result.toByteArray();
+  }
+
+  private static boolean isSegment(StorageKey key, byte[] segmentPk) {
+    return key.getPk().length == segmentPk.length + 1
+        && Arrays.equals(Arrays.copyOf(key.getPk(), segmentPk.length), segmentPk);
+  }
+
+  /**
+   * Segments are spread over partitions by the first byte of the id.
+   */
+  private static int segments(FileSystem storage, byte[] segmentPk) throws IOException {
+    int segments = 0;
+    for (int bucket = 0; bucket < 256; bucket++) {
+      byte[] pk = Arrays.copyOf(segmentPk, segmentPk.length + 1);
+      pk[segmentPk.length] = (byte) bucket;
+      segments += storage.list(StorageKey.of(pk)).size();
+    }
+    return segments;
+  }
+
+  @Test
+  public void groupCommitAndCompaction() throws Exception {
+    AtomicInteger saves = new AtomicInteger();
+    byte[] segmentPk = Concept.USFS.withPassword("test").digest("segments");
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), Concept.USFS.withPassword("test")) {
+      @Override
+      public void save(StorageKey key, byte[] b) throws IOException {
+        saves.incrementAndGet();
+        if (isSegment(key, segmentPk)) {
+          try {
+            Thread.sleep(50); // slow backend, files closed meanwhile go to the next segment
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        super.save(key, b);
+      }
+    };
+    storage.setChunkSize(16 * 1024, 1024 * 1024);
+    storage.setInlineSize(100);
+    storage.setPackSize(8 * 1024);
+    storage.setPackLinger(0);
+    saves.set(0); // root folder
+    int files = 64;
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < files; i++) {
+      int n = i;
+      futures.add(executor.submit(() -> {
+        try (OutputStream stream = storage.newOutputStream(new Path("/file" + n))) {
+          stream.write(content(n));
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+    int segments = segments(storage, segmentPk);
+    assertTrue("segments: " + segments, segments < files / 4);
+    assertEquals(files + segments, saves.get());
+    for (int i = 0; i < files; i++) {
+      assertArrayEquals(content(i), readAll(storage, new Path("/file" + i)));
+    }
+
+    for (int i = 0; i < files; i += 4) {
+      storage.delete(new Path("/file" + i));
+    }
+    try (OutputStream stream = storage.newOutputStream(new Path("/file1"), 500)) {
+      stream.write(content(1), 500, 300); // resumed in the next segment
+    }
+    assertEquals(0, storage.compactSegments(0));
+    assertEquals(segments + 1, storage.compactSegments(1)); // headers are not live content
+    assertEquals(0, storage.compactSegments(0.9));
+    assertTrue(segments(storage, segmentPk) < segments);
+    assertArrayEquals(Arrays.copyOf(content(1), 800), readAll(storage, new Path("/file1")));
+    for (int i = 0; i < files; i++) {
+      Path path = new Path("/file" + i);
+      assertEquals(i % 4 != 0, storage.exists(path));
+      if (i % 4 != 0 && i != 1) {
+        assertArrayEquals(content(i), readAll(storage, path));
+      }
+    }
+  }
+
+  @Test
+  public void lingerGroupsSequentialFiles() throws Exception {
+    Concept concept = Concept.SHA256.withPassword("test"); // no name collisions in 2000 files
+    byte[] segmentPk = concept.digest("segments");
+    FileSystem storage = new FileSystem(temporaryFolder.newFolder().getPath(), concept);
+    storage.setChunkSize(16 * 1024, 1024 * 1024);
+    storage.setInlineSize(100);
+    storage.setPackSize(8 * 1024);
+    storage.setPackLinger(60_000); // saved when full or flushed
+    int files = 2000;
+    for (int i = 0; i < files; i++) {
+      try (OutputStream stream = storage.newOutputStream(new Path("/file" + i))) {
+        stream.write(content(i));
+      }
+    }
+    assertFalse(storage.exists(new Path("/file" + (files - 1)))); // in the open segment
+    storage.flushSegments();
+    int segments = segments(storage, segmentPk);
+    assertTrue("segments: " + segments, segments < files / 50);
+    for (int i = 0; i < files; i++) {
+      assertArrayEquals(content(i), readAll(storage, new Path("/file" + i)));
+    }
+
+    storage.setPackLinger(50);
+    try (OutputStream stream = storage.newOutputStream(new Path("/late"))) {
+      stream.write(content(1));
+    }
+    for (int i = 0; i < 100 && !storage.exists(new Path("/late")); i++) {
+      Thread.sleep(50); // saved by the timer
+    }
+    assertArrayEquals(content(1), readAll(storage, new Path("/late")));
+    assertEquals(segments + 1, segments(storage, segmentPk));
+  }
+
+}
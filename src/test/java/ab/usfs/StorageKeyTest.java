@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class StorageKeyTest {
+
+  @Test
+  public void equalsByContent() {
+    StorageKey partition = StorageKey.of(new byte[]{1, 2});
+    StorageKey key = partition.withSk(new byte[]{3});
+    StorageKey same = StorageKey.of(new byte[]{1, 2}, new byte[]{3});
+    assertEquals(key, same);
+    assertEquals(key.hashCode(), same.hashCode());
+    assertEquals(partition, same.getPartition());
+    assertSame(partition, key.getPartition());
+    assertSame(partition, partition.getPartition());
+    assertNotEquals(key, StorageKey.of(new byte[]{1}, new byte[]{2, 3})); // same id, other partition
+    assertNotEquals(key, partition.withSk(new byte[]{4}));
+
+    Map<StorageKey, String> map = new HashMap<>();
+    map.put(key, "value");
+    assertEquals("value", map.get(same));
+  }
+
+  @Test
+  public void id() {
+    StorageKey key = StorageKey.of(new byte[]{1, 2}, new byte[]{(byte) 0xAB});
+    assertArrayEquals(new byte[]{1, 2, (byte) 0xAB}, key.getId());
+    assertSame(key.getId(), key.getId());
+    assertArrayEquals(new byte[]{1, 2}, key.getPartition().getId());
+    assertEquals("0102/ab", key.toString());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab.usfs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class UsageTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static void write(Storage storage, Path path, long offset, int size) throws IOException {
+    try (OutputStream stream = storage.newOutputStream(path, offset)) {
+      stream.write(new byte[size]);
+    }
+  }
+
+  @Test
+  public void keptOnChange() throws IOException {
+    for (AbstractStorage storage : new AbstractStorage[]{
+        new Memory(new HashMap<>(), Concept.USFS.withPassword("test")),
+        new FileSystem(temporaryFolder.newFolder().getPath(), Concept.SHA256.withPassword("test"))}) {
+      storage.setChunkSize(1024, 1024);
+      storage.setUsage(true);
+      Path root = new Path("/");
+      Path a = storage.createFolder(new Path("/a"));
+      Path b = storage.createFolder(new Path("/a/b"));
+      write(storage, new Path("/a/b/file"), 0, 5000);
+      write(storage, new Path("/a/small"), 0, 10);
+      assertEquals(new Usage(5010, 4), storage.getUsage(root));
+      assertEquals(new Usage(5010, 3), storage.getUsage(a));
+      assertEquals(new Usage(5000, 1), storage.getUsage(b));
+
+      write(storage, new Path("/a/b/file"), 3000, 100); // truncated
+      storage.setLastModifiedInstant(b, storage.getLastModifiedInstant(a));
+      assertEquals(new Usage(3100, 1), storage.getUsage(b));
+      assertEquals(new Usage(3110, 4), storage.getUsage(root));
+
+      storage.delete(new Path("/a/small"));
+      assertEquals(new Usage(3100, 3), storage.getUsage(root));
+      storage.delete(new Path("/a/b/file"));
+      storage.delete(b);
+      assertEquals(new Usage(0, 1), storage.getUsage(root));
+      assertEquals(new Usage(0, 0), storage.getUsage(a));
+    }
+  }
+
+  @Test
+  public void bestEffort() throws IOException {
+    Memory storage = new Memory(new HashMap<>(), Concept.USFS.withPassword("test")) {
+      @Override
+      public void addUsage(StorageKey key, long bytes, long entries) throws IOException {
+        throw new IOException("usage");
+      }
+    };
+    storage.setUsage(true);
+    Path file = new Path("/file");
+    write(storage, file, 0, 100); // committed, usage is corrected by recompute
+    assertEquals(100, storage.size(file));
+    storage.delete(file);
+    assertFalse(storage.exists(file));
+  }
+
+  @Test
+  public void recompute() throws IOException {
+    Memory storage = new Memory(new HashMap<>(), Concept.USFS.withPassword("test"));
+    storage.setUsage(true);
+    Path a = storage.createFolder(new Path("/a"));
+    storage.createFolder(new Path("/a/b"));
+    write(storage, new Path("/a/b/file"), 0, 100);
+    storage.addUsage(storage.getKey(a), 7, -1); // saved before usage was kept
+    assertEquals(new Usage(107, 1), storage.getUsage(a));
+    assertEquals(new Usage(100, 3), storage.recomputeUsage(new Path("/")));
+    assertEquals(new Usage(100, 3), storage.getUsage(new Path("/")));
+    assertEquals(new Usage(100, 2), storage.getUsage(a));
+  }
+
+}